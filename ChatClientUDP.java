@@ -4,6 +4,8 @@ import java.awt.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.imageio.ImageIO;
 import javax.sound.sampled.*;
 import java.awt.event.WindowAdapter;
@@ -24,6 +26,24 @@ public class ChatClientUDP extends JFrame {
     private int serverPort;
     private String name;
     private volatile boolean connected = true;
+    private volatile boolean compressionEnabled = false; // Activée quand le serveur répond CAPS
+    private volatile Long sessionToken = null; // Remis par le serveur (trame SESSION) après CONNECT
+
+    // Taille de datagramme sûre vers le serveur, 0 tant que le sondage n'est pas terminé
+    private volatile int payloadSize = 0;
+    private final BlockingQueue<Integer> probeAcks = new LinkedBlockingQueue<>();
+    private final FrameFragmenter fragmenter = new FrameFragmenter();
+    private static final int SESSION_OVERHEAD = 2 + 4 + 8; // writeUTF("SESS") + long
+    private static final long PROBE_TIMEOUT_MS = 300;
+
+    // Médias reçus : écriture disque hors du thread de réception (-Dchat.media.fsync=true pour synchroniser)
+    private final MediaWriter mediaWriter = new MediaWriter(Boolean.getBoolean("chat.media.fsync"));
+    // -Dchat.media.memory=true : images et vocaux courts gardés en mémoire, sans fichier
+    private static final boolean KEEP_MEDIA_IN_MEMORY = Boolean.getBoolean("chat.media.memory");
+    private static final int MEMORY_MEDIA_MAX_SIZE = 32 * 1024;
+    private static final long MEMORY_MEDIA_BUDGET = 8L * 1024 * 1024;
+    // Octets des médias gardés en mémoire : une image est décomptée une fois décodée, un vocal reste compté
+    private final AtomicLong memoryMediaBytes = new AtomicLong();
 
     private boolean recording = false;
     private TargetDataLine microphone;
@@ -79,6 +99,8 @@ public class ChatClientUDP extends JFrame {
             this.serverAddress = InetAddress.getByName(serverAddress);
             this.serverPort = port;
             this.socket = new DatagramSocket();
+            TransportConfig.fromSystemProperties(200).apply(socket);
+            TransportConfig.startDropMonitor(socket, 10000);
 
             sendConnect();
             new Thread(this::listenServer).start();
@@ -114,6 +136,7 @@ public class ChatClientUDP extends JFrame {
 
             out.writeUTF("CONNECT");
             out.writeUTF(name);
+            out.writeUTF(PayloadCodec.CAPABILITY);
             out.flush();
 
             byte[] data = baos.toByteArray();
@@ -139,6 +162,8 @@ public class ChatClientUDP extends JFrame {
             socket.close();
         }
 
+        mediaWriter.close();
+
         if (recording && microphone != null) {
             microphone.stop();
             microphone.close();
@@ -146,6 +171,32 @@ public class ChatClientUDP extends JFrame {
 
         appendText("🔴 Déconnecté du serveur\n", Color.RED);
     }
+    /** PING périodique : sans activité, le serveur expire la session (voir IngressGuard). */
+    private void startKeepalive() {
+        ScheduledExecutorService keepalive = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "keepalive");
+            t.setDaemon(true);
+            return t;
+        });
+        keepalive.scheduleAtFixedRate(() -> {
+            if (!connected) {
+                keepalive.shutdown();
+                return;
+            }
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(baos);
+                out.writeUTF("PING");
+                out.flush();
+
+                byte[] data = withSession(baos.toByteArray());
+                socket.send(new DatagramPacket(data, data.length, serverAddress, serverPort));
+            } catch (IOException e) {
+                // Le prochain PING réessaiera
+            }
+        }, IngressGuard.KEEPALIVE_MS, IngressGuard.KEEPALIVE_MS, TimeUnit.MILLISECONDS);
+    }
+
     private void sendDisconnect() {
         if (!connected) return;
 
@@ -157,7 +208,7 @@ public class ChatClientUDP extends JFrame {
             out.writeUTF(name);
             out.flush();
 
-            byte[] data = baos.toByteArray();
+            byte[] data = withSession(baos.toByteArray());
             DatagramPacket packet = new DatagramPacket(data, data.length, serverAddress, serverPort);
             socket.send(packet);
 
@@ -192,9 +243,7 @@ public class ChatClientUDP extends JFrame {
             out.writeUTF(msg);
             out.flush();
 
-            byte[] data = baos.toByteArray();
-            DatagramPacket packet = new DatagramPacket(data, data.length, serverAddress, serverPort);
-            socket.send(packet);
+            sendFrame(baos.toByteArray(), "TEXT", null);
 
             appendText("[" + getTimestamp() + "] Moi -> " + (dest.equals("TOUS") ? "Tous" : dest) + " : " + msg + "\n", Color.BLUE);
             inputField.setText("");
@@ -252,9 +301,7 @@ public class ChatClientUDP extends JFrame {
             out.write(data);
             out.flush();
 
-            byte[] packetData = baos.toByteArray();
-            DatagramPacket packet = new DatagramPacket(packetData, packetData.length, serverAddress, serverPort);
-            socket.send(packet);
+            sendFrame(baos.toByteArray(), type, data);
 
             appendText("[" + getTimestamp() + "] Moi -> " + dest + " : " + file.getName() + "\n", Color.BLUE);
         } catch (IOException e) {
@@ -326,15 +373,86 @@ public class ChatClientUDP extends JFrame {
             out.write(data);
             out.flush();
 
-            byte[] packetData = baos.toByteArray();
-            DatagramPacket packet = new DatagramPacket(packetData, packetData.length, serverAddress, serverPort);
-            socket.send(packet);
+            sendFrame(baos.toByteArray(), "AUDIO", data);
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private void sendFrame(byte[] data, String type, byte[] payload) throws IOException {
+        if (compressionEnabled) data = PayloadCodec.encode(data, type, payload);
+
+        int limit = payloadSize;
+        if (limit > 0 && data.length + SESSION_OVERHEAD > limit) {
+            for (byte[] fragment : fragmenter.split(data, limit - SESSION_OVERHEAD)) {
+                byte[] wrapped = withSession(fragment);
+                socket.send(new DatagramPacket(wrapped, wrapped.length, serverAddress, serverPort));
+            }
+            return;
+        }
+
+        data = withSession(data);
+        DatagramPacket packet = new DatagramPacket(data, data.length, serverAddress, serverPort);
+        socket.send(packet);
+    }
+
+    /**
+     * Sonde le serveur avec des datagrammes de taille décroissante et garde la plus grande
+     * acquittée, puis l'annonce au serveur (trame MTU) pour qu'il découpe ses envois.
+     */
+    private void discoverPayloadSize() {
+        int chosen = TransportConfig.FALLBACK_PAYLOAD;
+        try {
+            for (int size : TransportConfig.probeSizes(serverAddress)) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
+                DataOutputStream out = new DataOutputStream(baos);
+                out.writeUTF("PROBE");
+                out.writeInt(size);
+                out.write(new byte[Math.max(0, size - SESSION_OVERHEAD - baos.size())]);
+                out.flush();
+
+                byte[] data = withSession(baos.toByteArray());
+                probeAcks.clear();
+                socket.send(new DatagramPacket(data, data.length, serverAddress, serverPort));
+
+                Integer ack = probeAcks.poll(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (ack != null && ack == size) {
+                    chosen = size;
+                    break;
+                }
+            }
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeUTF("MTU");
+            out.writeInt(chosen);
+            out.flush();
+            byte[] data = withSession(baos.toByteArray());
+            socket.send(new DatagramPacket(data, data.length, serverAddress, serverPort));
+        } catch (IOException e) {
+            // Garder la valeur de repli
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        payloadSize = chosen;
+        System.out.println("📏 Taille de datagramme retenue: " + chosen + " octets");
+    }
+
+    /** Préfixe la trame par le jeton de session, sans lequel le serveur l'ignore. */
+    private byte[] withSession(byte[] data) throws IOException {
+        Long token = sessionToken;
+        if (token == null) return data;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length + 16);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeUTF(IngressGuard.SESSION_TYPE);
+        out.writeLong(token);
+        out.write(data);
+        out.flush();
+        return baos.toByteArray();
+    }
+
     private void listenServer() {
         byte[] buffer = new byte[65507];
 
@@ -347,6 +465,16 @@ public class ChatClientUDP extends JFrame {
                 DataInputStream in = new DataInputStream(bais);
 
                 String type = in.readUTF();
+                if (type.equals(FrameFragmenter.TYPE)) {
+                    byte[] frame = fragmenter.add(packet.getSocketAddress(), in);
+                    if (frame == null) continue; // Fragments manquants
+                    in = new DataInputStream(new ByteArrayInputStream(frame));
+                    type = in.readUTF();
+                }
+                if (type.equals(PayloadCodec.TYPE)) {
+                    in = new DataInputStream(new ByteArrayInputStream(PayloadCodec.decode(in)));
+                    type = in.readUTF();
+                }
 
                 if (type.equals("TEXT")) {
                     String target = in.readUTF();
@@ -361,6 +489,17 @@ public class ChatClientUDP extends JFrame {
                 } else if (type.equals("LISTE")) {
                     String listStr = in.readUTF();
                     updateUserList(listStr);
+                } else if (type.equals("SESSION")) {
+                    boolean first = sessionToken == null;
+                    sessionToken = in.readLong();
+                    if (first) {
+                        new Thread(this::discoverPayloadSize).start();
+                        startKeepalive();
+                    }
+                } else if (type.equals("PROBE_ACK")) {
+                    probeAcks.offer(in.readInt());
+                } else if (type.equals("CAPS")) {
+                    compressionEnabled = in.readUTF().equals(PayloadCodec.CAPABILITY);
                 }
 
             } catch (SocketException e) {
@@ -381,17 +520,48 @@ public class ChatClientUDP extends JFrame {
         String sender = in.readUTF();
         String filename = in.readUTF();
         int size = in.readInt();
+        // La taille annoncée ne doit pas dépasser ce que contient réellement la trame
+        if (size < 0 || size > in.available()) {
+            appendText("⚠️ Média invalide de " + sender + " ignoré\n", Color.RED);
+            return;
+        }
         byte[] data = new byte[size];
         in.readFully(data);
 
-        File file = new File("received_" + filename);
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(data);
+        // Les fichiers restent sur disque : ils doivent pouvoir être ouverts par une autre application
+        if (KEEP_MEDIA_IN_MEMORY && !type.equals("FILE") && size <= MEMORY_MEDIA_MAX_SIZE) {
+            // Budget plein : le média est ignoré plutôt qu'écrit sur disque, ce que l'option doit éviter
+            if (memoryMediaBytes.addAndGet(size) > MEMORY_MEDIA_BUDGET) {
+                memoryMediaBytes.addAndGet(-size);
+                appendText("⚠️ Mémoire des médias pleine, " + filename + " de " + sender + " ignoré\n", Color.RED);
+                return;
+            }
+            // Le décodage se fait sur le thread d'écriture : la réception ne fait que mettre en file
+            boolean queued = mediaWriter.submit(null, data, () -> {
+                if (type.equals("IMG")) {
+                    appendImage(data);
+                    memoryMediaBytes.addAndGet(-size);
+                } else {
+                    appendAudioMessage(sender, data);
+                }
+            });
+            if (!queued) {
+                memoryMediaBytes.addAndGet(-size);
+                appendText("⚠️ Médias en attente saturés, " + filename + " de " + sender + " ignoré\n", Color.RED);
+            }
+            return;
         }
 
-        if (type.equals("IMG")) appendImage(file);
-        else if (type.equals("AUDIO")) appendAudioMessage(sender, file);
-        else if (type.equals("FILE")) appendFileMessage(sender, file);
+        File file = new File("received_" + filename);
+        boolean queued = mediaWriter.submit(file, data, () -> {
+            if (type.equals("IMG")) appendImage(file);
+            else if (type.equals("AUDIO")) appendAudioMessage(sender, file);
+            else if (type.equals("FILE")) appendFileMessage(sender, file);
+        });
+
+        if (!queued) {
+            appendText("⚠️ Écriture disque saturée, " + filename + " de " + sender + " ignoré\n", Color.RED);
+        }
     }
 
     private void appendText(String msg, Color color) {
@@ -421,6 +591,28 @@ public class ChatClientUDP extends JFrame {
         }
     }
 
+    private void appendImage(byte[] data) {
+        try {
+            ImageIcon icon = new ImageIcon(ImageIO.read(new ByteArrayInputStream(data)));
+            SwingUtilities.invokeLater(() -> {
+                chatPane.setCaretPosition(chatPane.getDocument().getLength());
+                chatPane.insertIcon(icon);
+                appendText("\n", Color.BLACK);
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void appendAudioMessage(String sender, byte[] audioData) {
+        SwingUtilities.invokeLater(() -> {
+            JButton playBtn = new JButton("▶️ Écouter " + sender);
+            playBtn.addActionListener(e -> playAudio(audioData));
+            chatPane.insertComponent(playBtn);
+            appendText("\n", Color.BLACK);
+        });
+    }
+
     private void appendAudioMessage(String sender, File audioFile) {
         SwingUtilities.invokeLater(() -> {
             JButton playBtn = new JButton("▶️ Écouter " + sender);
@@ -450,6 +642,17 @@ public class ChatClientUDP extends JFrame {
         }
     }
 
+    private void playAudio(byte[] data) {
+        try {
+            AudioInputStream ais = AudioSystem.getAudioInputStream(new ByteArrayInputStream(data));
+            Clip clip = AudioSystem.getClip();
+            clip.open(ais);
+            clip.start();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     private void openFile(File file) {
         try {
             Desktop.getDesktop().open(file);
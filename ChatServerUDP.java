@@ -4,23 +4,61 @@ import java.util.*;
 import java.util.concurrent.*;
 
 public class ChatServerUDP {
-    private static final int PORT = 5000;
+    private static final int DEFAULT_PORT = 5000;
     private static final Map<String, InetSocketAddress> clientAddresses = Collections.synchronizedMap(new HashMap<>());
+    // Clients ayant négocié la compression (voir PayloadCodec)
+    private static final Set<InetSocketAddress> compressionClients = ConcurrentHashMap.newKeySet();
+    // Taille de datagramme annoncée par chaque client (trame MTU) ; absent = pas de découpage
+    private static final Map<InetSocketAddress, Integer> clientPayloadSizes = new ConcurrentHashMap<>();
+    private static final FrameFragmenter fragmenter = new FrameFragmenter();
+    // Messages et fichiers privés en attente des destinataires hors ligne
+    private static final OfflineMailbox mailbox = new OfflineMailbox(new File("mailbox"));
     private static DatagramSocket serverSocket;
-
-    private static final ExecutorService executor = Executors.newFixedThreadPool(10);
-
+    // Lien vers les autres noeuds, null en mode autonome
+    private static ClusterLink cluster;
+
+    private static final IngressGuard guard = new IngressGuard();
+    private static final ScheduledExecutorService sessionSweeper = Executors.newSingleThreadScheduledExecutor();
+
+    // File bornée : en cas d'afflux, les trames en trop sont abandonnées plutôt que d'épuiser la mémoire
+    private static final ExecutorService executor = new ThreadPoolExecutor(10, 10, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1000), new ThreadPoolExecutor.DiscardPolicy());
+
+    /**
+     * Utilisation : java ChatServerUDP [port] [portCluster] [pair:port,pair:port...]
+     * Sans portCluster, le serveur fonctionne seul comme avant.
+     * Lien de cluster : -Dchat.cluster.bind (interface, 127.0.0.1 par défaut)
+     * et -Dchat.cluster.secret (secret partagé, sinon seuls les pairs listés sont acceptés).
+     */
     public static void main(String[] args) {
-        System.out.println("✅ Serveur chat UDP + image + vocal + fichier démarré sur le port " + PORT);
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        System.out.println("✅ Serveur chat UDP + image + vocal + fichier démarré sur le port " + port);
 
         try {
-            serverSocket = new DatagramSocket(PORT);
+            serverSocket = new DatagramSocket(port);
+            TransportConfig.fromSystemProperties(2000).apply(serverSocket);
+            TransportConfig.startDropMonitor(serverSocket, 10000);
+            sessionSweeper.scheduleAtFixedRate(ChatServerUDP::expireIdleSessions,
+                    IngressGuard.KEEPALIVE_MS, IngressGuard.KEEPALIVE_MS, TimeUnit.MILLISECONDS);
+            if (args.length > 1) {
+                List<InetSocketAddress> seeds = args.length > 2 ? ClusterLink.parsePeers(args[2]) : Collections.emptyList();
+                InetAddress bind = InetAddress.getByName(System.getProperty("chat.cluster.bind", "127.0.0.1"));
+                cluster = new ClusterLink(bind, Integer.parseInt(args[1]), seeds, System.getProperty("chat.cluster.secret"),
+                        ChatServerUDP::localUserNames, new ClusterHandler());
+                cluster.start();
+                System.out.println("🔗 Cluster actif sur le port " + args[1] + " (pairs: " + seeds + ")");
+            }
             byte[] receiveBuffer = new byte[65507];
 
             while (true) {
                 DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
                 serverSocket.receive(receivePacket);
 
+                // Rejet à moindre coût, avant la copie et la mise en file
+                if (!guard.accept(receiveBuffer, receivePacket.getLength(), receivePacket.getAddress(), receivePacket.getPort())) {
+                    continue;
+                }
+
                 byte[] packetData = Arrays.copyOf(receivePacket.getData(), receivePacket.getLength());
                 executor.execute(new PacketHandler(packetData, receivePacket.getAddress(), receivePacket.getPort()));
             }
@@ -28,14 +66,40 @@ public class ChatServerUDP {
             e.printStackTrace();
         } finally {
             if (serverSocket != null) serverSocket.close();
+            if (cluster != null) cluster.close();
+            sessionSweeper.shutdown();
             executor.shutdown();
         }
     }
 
+    /** Retire les clients dont la session a expiré (client planté, sans DISCONNECT). */
+    private static void expireIdleSessions() {
+        boolean changed = false;
+        for (IngressGuard.Session session : guard.expireIdleSessions()) {
+            if (clientAddresses.remove(session.name, session.address)) {
+                compressionClients.remove(session.address);
+                clientPayloadSizes.remove(session.address);
+                System.out.println("🔴 Client " + session.name + " retiré (session expirée)");
+                changed = true;
+            }
+        }
+        if (changed) {
+            PacketHandler.sendClientList();
+            if (cluster != null) cluster.gossip();
+        }
+    }
+
+    private static Collection<String> localUserNames() {
+        synchronized (clientAddresses) {
+            return new ArrayList<>(clientAddresses.keySet());
+        }
+    }
+
     private static class PacketHandler implements Runnable {
         private byte[] data;
         private InetAddress clientAddress;
         private int clientPort;
+        private String sessionName; // Pseudo associé au jeton de session, null pour CONNECT
 
         public PacketHandler(byte[] data, InetAddress clientAddress, int clientPort) {
             this.data = data;
@@ -49,6 +113,24 @@ public class ChatServerUDP {
                 DataInputStream in = new DataInputStream(bais);
 
                 String type = in.readUTF();
+                if (type.equals(IngressGuard.SESSION_TYPE)) {
+                    IngressGuard.Session session = guard.session(in.readLong());
+                    if (session == null) return; // Session fermée entre-temps
+                    sessionName = session.name;
+                    type = in.readUTF();
+                }
+                if (type.equals(FrameFragmenter.TYPE)) {
+                    byte[] frame = fragmenter.add(new InetSocketAddress(clientAddress, clientPort), in);
+                    if (frame == null) return; // Fragments manquants
+                    in = new DataInputStream(new ByteArrayInputStream(frame));
+                    type = in.readUTF();
+                }
+                if (type.equals(PayloadCodec.TYPE)) {
+                    in = new DataInputStream(new ByteArrayInputStream(PayloadCodec.decode(in)));
+                    type = in.readUTF();
+                }
+                // Un CONNECT ne voyage jamais dans une session, même compressé ou fragmenté
+                if (type.equals("CONNECT") && sessionName != null) return;
 
                 if (type.equals("CONNECT")) {
                     handleConnect(in);
@@ -62,6 +144,12 @@ public class ChatServerUDP {
                     handleBinaryData(in, "FILE");
                 } else if (type.equals("DISCONNECT")) {
                     handleDisconnect(in);
+                } else if (type.equals("PROBE")) {
+                    handleProbe(in);
+                } else if (type.equals("MTU")) {
+                    int size = in.readInt();
+                    clientPayloadSizes.put(new InetSocketAddress(clientAddress, clientPort),
+                            Math.max(TransportConfig.MIN_PAYLOAD, Math.min(TransportConfig.MAX_UDP_PAYLOAD, size)));
                 }
 
             } catch (IOException e) {
@@ -72,15 +160,53 @@ public class ChatServerUDP {
         private void handleConnect(DataInputStream in) throws IOException {
             String name = in.readUTF();
             InetSocketAddress clientAddress = new InetSocketAddress(this.clientAddress, this.clientPort);
+
+            IngressGuard.Session session = null;
+            boolean remote = cluster != null && cluster.ownsRemotely(name) && !clientAddresses.containsKey(name);
+            if (!name.isEmpty() && !remote) session = guard.openSession(name, clientAddress);
+            if (session == null) {
+                System.out.println("⛔ Pseudo " + name + " refusé pour " + clientAddress);
+                sendText(clientAddress, "TEXT", "PRIVATE", "❌ Pseudo \"" + name + "\" déjà utilisé");
+                return;
+            }
+
             clientAddresses.put(name, clientAddress);
+            clientPayloadSizes.remove(clientAddress); // Jusqu'à la prochaine trame MTU
+            sendSession(clientAddress, session.token);
+
+            // Les anciens clients n'envoient que le pseudo
+            if (in.available() > 0 && in.readUTF().equals(PayloadCodec.CAPABILITY)) {
+                compressionClients.add(clientAddress);
+                sendCapabilities(clientAddress);
+            } else {
+                compressionClients.remove(clientAddress);
+            }
 
             System.out.println("🟢 " + name + " connecté depuis " + clientAddress);
+            if (cluster != null) cluster.gossip();
             broadcast("🟢 " + name + " a rejoint le chat !", name);
             sendClientList();
+
+            mailbox.register(name);
+            mailbox.deliver(name, localSink(name, clientAddress));
+        }
+
+        private static OfflineMailbox.Sink localSink(String name, InetSocketAddress clientAddress) {
+            return new OfflineMailbox.Sink() {
+                public void deliver(byte[] data) {
+                    OutgoingFrame frame = OutgoingFrame.parse(data);
+                    if (frame != null) sendFrame(clientAddress, frame, "❌ Erreur livraison différée à ");
+                }
+
+                public boolean stillOnline() {
+                    return clientAddress.equals(clientAddresses.get(name));
+                }
+            };
         }
 
         private void handleText(DataInputStream in) throws IOException {
             String name = in.readUTF();
+            if (!name.equals(sessionName)) return;
             String dest = in.readUTF();
             String timestamp = in.readUTF();
             String msg = in.readUTF();
@@ -96,9 +222,12 @@ public class ChatServerUDP {
 
         private void handleBinaryData(DataInputStream in, String dataType) throws IOException {
             String name = in.readUTF();
+            if (!name.equals(sessionName)) return;
             String dest = in.readUTF();
             String filename = in.readUTF();
             int size = in.readInt();
+            // La taille annoncée ne doit pas dépasser ce que contient réellement la trame
+            if (size < 0 || size > in.available()) throw new IOException("Taille de média invalide: " + size);
             byte[] data = new byte[size];
             in.readFully(data);
 
@@ -109,10 +238,30 @@ public class ChatServerUDP {
             }
         }
 
+        /** Répond à une sonde de taille : le client garde la plus grande taille acquittée. */
+        private void handleProbe(DataInputStream in) throws IOException {
+            int size = in.readInt();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+
+            out.writeUTF("PROBE_ACK");
+            out.writeInt(size);
+            out.flush();
+
+            byte[] data = baos.toByteArray();
+            serverSocket.send(new DatagramPacket(data, data.length, clientAddress, clientPort));
+        }
+
         private void handleDisconnect(DataInputStream in) throws IOException {
             String name = in.readUTF();
-            if (clientAddresses.remove(name) != null) {
+            if (!name.equals(sessionName)) return;
+            guard.closeSession(name);
+            InetSocketAddress address = clientAddresses.remove(name);
+            if (address != null) {
+                compressionClients.remove(address);
+                clientPayloadSizes.remove(address);
                 System.out.println("🔴 " + name + " déconnecté");
+                if (cluster != null) cluster.gossip();
                 broadcast("🔴 " + name + " a quitté le chat !", name);
                 sendClientList();
             }
@@ -120,11 +269,17 @@ public class ChatServerUDP {
 
         private void broadcast(String msg, String excludeSender) {
             List<String> disconnectedClients = new ArrayList<>();
+            OutgoingFrame frame;
+            try {
+                frame = textFrame("TEXT", "ALL", msg);
+            } catch (IOException e) {
+                return;
+            }
 
             synchronized (clientAddresses) {
                 for (Map.Entry<String, InetSocketAddress> entry : clientAddresses.entrySet()) {
                     if (!entry.getKey().equals(excludeSender)) {
-                        boolean success = sendText(entry.getValue(), "TEXT", "ALL", msg);
+                        boolean success = sendFrame(entry.getValue(), frame, "❌ Erreur envoi à ");
                         if (!success) {
                             disconnectedClients.add(entry.getKey());
                         }
@@ -132,9 +287,13 @@ public class ChatServerUDP {
                 }
             }
 
+            // Une seule copie par noeud distant, qui la redistribue à ses clients
+            if (cluster != null) cluster.relay(frame.plain, excludeSender);
+
             // Retirer les clients déconnectés
             for (String client : disconnectedClients) {
                 clientAddresses.remove(client);
+                guard.closeSession(client);
                 System.out.println("🔴 Client " + client + " retiré (déconnexion détectée)");
             }
 
@@ -149,19 +308,38 @@ public class ChatServerUDP {
                 boolean success = sendText(address, "TEXT", "PRIVATE", msg);
                 if (!success) {
                     clientAddresses.remove(to);
+                    guard.closeSession(to);
                     System.out.println("🔴 Client " + to + " retiré (déconnexion détectée)");
                     sendClientList();
                 }
+            } else if (cluster != null && cluster.ownsRemotely(to)) {
+                try {
+                    cluster.route(to, textFrame("TEXT", "PRIVATE", msg).plain);
+                } catch (IOException e) {
+                    System.out.println("❌ Erreur routage vers " + to + ": " + e.getMessage());
+                }
+            } else {
+                try {
+                    storeOffline(to, textFrame("TEXT", "PRIVATE", msg));
+                } catch (IOException e) {
+                    System.out.println("❌ Erreur mise en attente pour " + to + ": " + e.getMessage());
+                }
             }
         }
 
         private void broadcastBinary(String type, String sender, String filename, byte[] data, String excludeSender) {
             List<String> disconnectedClients = new ArrayList<>();
+            OutgoingFrame frame;
+            try {
+                frame = binaryFrame(type, sender, filename, data);
+            } catch (IOException e) {
+                return;
+            }
 
             synchronized (clientAddresses) {
                 for (Map.Entry<String, InetSocketAddress> entry : clientAddresses.entrySet()) {
                     if (!entry.getKey().equals(excludeSender)) {
-                        boolean success = sendBinary(entry.getValue(), type, sender, filename, data);
+                        boolean success = sendFrame(entry.getValue(), frame, "❌ Erreur envoi fichier à ");
                         if (!success) {
                             disconnectedClients.add(entry.getKey());
                         }
@@ -169,9 +347,13 @@ public class ChatServerUDP {
                 }
             }
 
+            // Une seule copie par noeud distant, qui la redistribue à ses clients
+            if (cluster != null) cluster.relay(frame.plain, excludeSender);
+
             // Retirer les clients déconnectés
             for (String client : disconnectedClients) {
                 clientAddresses.remove(client);
+                guard.closeSession(client);
                 System.out.println("🔴 Client " + client + " retiré (déconnexion détectée)");
             }
 
@@ -186,27 +368,47 @@ public class ChatServerUDP {
                 boolean success = sendBinary(address, type, sender, filename, data);
                 if (!success) {
                     clientAddresses.remove(to);
+                    guard.closeSession(to);
                     System.out.println("🔴 Client " + to + " retiré (déconnexion détectée)");
                     sendClientList();
                 }
+            } else if (cluster != null && cluster.ownsRemotely(to)) {
+                try {
+                    cluster.route(to, binaryFrame(type, sender, filename, data).plain);
+                } catch (IOException e) {
+                    System.out.println("❌ Erreur routage fichier vers " + to + ": " + e.getMessage());
+                }
+            } else {
+                try {
+                    storeOffline(to, binaryFrame(type, sender, filename, data));
+                } catch (IOException e) {
+                    System.out.println("❌ Erreur mise en attente pour " + to + ": " + e.getMessage());
+                }
             }
         }
 
-        private boolean sendText(InetSocketAddress address, String type, String target, String msg) {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream out = new DataOutputStream(baos);
+        /** Garde la trame pour un destinataire hors ligne et prévient l'expéditeur. */
+        private void storeOffline(String to, OutgoingFrame frame) {
+            if (!mailbox.offer(to, frame.plain)) return;
 
-                out.writeUTF(type);
-                out.writeUTF(target);
-                out.writeUTF(msg);
-                out.flush();
+            // Le destinataire a pu se connecter, ici ou sur un autre noeud, depuis la vérification :
+            // sa livraison est peut-être déjà passée, la relancer
+            InetSocketAddress address = clientAddresses.get(to);
+            if (address != null) {
+                mailbox.deliver(to, localSink(to, address));
+            } else if (cluster != null && cluster.ownsRemotely(to)) {
+                mailbox.deliver(to, ClusterHandler.remoteSink(to));
+            }
 
-                byte[] data = baos.toByteArray();
-                DatagramPacket packet = new DatagramPacket(data, data.length, address.getAddress(), address.getPort());
-                serverSocket.send(packet);
-                return true;
+            InetSocketAddress sender = sessionName != null ? clientAddresses.get(sessionName) : null;
+            if (sender != null) {
+                sendText(sender, "TEXT", "PRIVATE", "📭 " + to + " est hors ligne : livraison à sa reconnexion");
+            }
+        }
 
+        private boolean sendText(InetSocketAddress address, String type, String target, String msg) {
+            try {
+                return sendFrame(address, textFrame(type, target, msg), "❌ Erreur envoi à ");
             } catch (IOException e) {
                 System.out.println("❌ Erreur envoi à " + address + ": " + e.getMessage());
                 return false;
@@ -215,40 +417,111 @@ public class ChatServerUDP {
 
         private boolean sendBinary(InetSocketAddress address, String type, String sender, String filename, byte[] fileData) {
             try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream out = new DataOutputStream(baos);
+                return sendFrame(address, binaryFrame(type, sender, filename, fileData), "❌ Erreur envoi fichier à ");
+            } catch (IOException e) {
+                System.out.println("❌ Erreur envoi fichier à " + address + ": " + e.getMessage());
+                return false;
+            }
+        }
 
-                out.writeUTF(type);
-                out.writeUTF(sender);
-                out.writeUTF(filename);
-                out.writeInt(fileData.length);
-                out.write(fileData);
-                out.flush();
+        private static OutgoingFrame textFrame(String type, String target, String msg) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
 
-                byte[] data = baos.toByteArray();
+            out.writeUTF(type);
+            out.writeUTF(target);
+            out.writeUTF(msg);
+            out.flush();
+
+            return new OutgoingFrame(type, baos.toByteArray(), null, null);
+        }
+
+        private static OutgoingFrame binaryFrame(String type, String sender, String filename, byte[] fileData) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+
+            out.writeUTF(type);
+            out.writeUTF(sender);
+            out.writeUTF(filename);
+            out.writeInt(fileData.length);
+            out.write(fileData);
+            out.flush();
+
+            return new OutgoingFrame(type, baos.toByteArray(), fileData, filename);
+        }
+
+        private static boolean sendFrame(InetSocketAddress address, OutgoingFrame frame, String errorPrefix) {
+            try {
+                byte[] data = frame.bytesFor(address);
                 if (data.length > 65507) {
-                    System.err.println("⚠️ Fichier trop volumineux pour UDP: " + filename);
+                    System.err.println("⚠️ Fichier trop volumineux pour UDP: " + frame.filename);
                     return true; // On ne considère pas ça comme une déconnexion
                 }
 
+                Integer payloadSize = clientPayloadSizes.get(address);
+                if (payloadSize != null && data.length > payloadSize) {
+                    for (byte[] fragment : fragmenter.split(data, payloadSize)) {
+                        serverSocket.send(new DatagramPacket(fragment, fragment.length, address.getAddress(), address.getPort()));
+                    }
+                    return true;
+                }
+
                 DatagramPacket packet = new DatagramPacket(data, data.length, address.getAddress(), address.getPort());
                 serverSocket.send(packet);
                 return true;
 
             } catch (IOException e) {
-                System.out.println("❌ Erreur envoi fichier à " + address + ": " + e.getMessage());
+                System.out.println(errorPrefix + address + ": " + e.getMessage());
                 return false;
             }
         }
 
-        private void sendClientList() {
+        private void sendSession(InetSocketAddress address, long token) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(baos);
+
+                out.writeUTF("SESSION");
+                out.writeLong(token);
+                out.flush();
+
+                byte[] data = baos.toByteArray();
+                serverSocket.send(new DatagramPacket(data, data.length, address.getAddress(), address.getPort()));
+            } catch (IOException e) {
+                System.out.println("❌ Erreur envoi session à " + address + ": " + e.getMessage());
+            }
+        }
+
+        private void sendCapabilities(InetSocketAddress address) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(baos);
+
+                out.writeUTF("CAPS");
+                out.writeUTF(PayloadCodec.CAPABILITY);
+                out.flush();
+
+                byte[] data = baos.toByteArray();
+                serverSocket.send(new DatagramPacket(data, data.length, address.getAddress(), address.getPort()));
+            } catch (IOException e) {
+                System.out.println("❌ Erreur envoi capacités à " + address + ": " + e.getMessage());
+            }
+        }
+
+        private static void sendClientList() {
             String listStr = getClientListString();
+            OutgoingFrame frame;
+            try {
+                frame = listFrame(listStr);
+            } catch (IOException e) {
+                return;
+            }
 
             List<String> disconnectedClients = new ArrayList<>();
 
             synchronized (clientAddresses) {
                 for (InetSocketAddress address : clientAddresses.values()) {
-                    boolean success = sendClientListToAddress(address, listStr);
+                    boolean success = sendFrame(address, frame, "❌ Erreur envoi liste à ");
                     if (!success) {
                         // Trouver le client correspondant à cette adresse
                         for (Map.Entry<String, InetSocketAddress> entry : clientAddresses.entrySet()) {
@@ -264,6 +537,7 @@ public class ChatServerUDP {
             // Retirer les clients déconnectés
             for (String client : disconnectedClients) {
                 clientAddresses.remove(client);
+                guard.closeSession(client);
                 System.out.println("🔴 Client " + client + " retiré (déconnexion détectée lors de l'envoi de liste)");
             }
 
@@ -273,34 +547,128 @@ public class ChatServerUDP {
             }
         }
 
-        private String getClientListString() {
+        private static String getClientListString() {
             StringBuilder list = new StringBuilder();
             synchronized (clientAddresses) {
                 for (String name : clientAddresses.keySet()) {
                     list.append(name).append(",");
                 }
             }
+            if (cluster != null) {
+                for (String name : cluster.remoteUsers()) {
+                    if (!clientAddresses.containsKey(name)) list.append(name).append(",");
+                }
+            }
             return list.toString();
         }
 
-        private boolean sendClientListToAddress(InetSocketAddress address, String listStr) {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream out = new DataOutputStream(baos);
+        private static OutgoingFrame listFrame(String listStr) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
 
-                out.writeUTF("LISTE");
-                out.writeUTF(listStr);
-                out.flush();
+            out.writeUTF("LISTE");
+            out.writeUTF(listStr);
+            out.flush();
 
-                byte[] data = baos.toByteArray();
-                DatagramPacket packet = new DatagramPacket(data, data.length, address.getAddress(), address.getPort());
-                serverSocket.send(packet);
-                return true;
+            return new OutgoingFrame("LISTE", baos.toByteArray(), null, null);
+        }
+    }
+
+    /**
+     * Livraison locale des trames reçues des autres noeuds du cluster.
+     * Les trames relayées ne sont jamais re-relayées.
+     * Le courrier en attente ici pour un utilisateur revenu sur un autre noeud lui est routé.
+     */
+    private static class ClusterHandler implements ClusterLink.Listener {
+        // Un seul Sink par pseudo : la livraison en cours n'est pas relancée à chaque gossip
+        private static final Map<String, OfflineMailbox.Sink> remoteSinks = new ConcurrentHashMap<>();
+
+        public void onRelay(byte[] data, String excludeSender) {
+            OutgoingFrame frame = OutgoingFrame.parse(data);
+            if (frame == null) return;
+            synchronized (clientAddresses) {
+                for (Map.Entry<String, InetSocketAddress> entry : clientAddresses.entrySet()) {
+                    if (!entry.getKey().equals(excludeSender)) {
+                        PacketHandler.sendFrame(entry.getValue(), frame, "❌ Erreur envoi relayé à ");
+                    }
+                }
+            }
+        }
+
+        public void onRoute(String to, byte[] data) {
+            InetSocketAddress address = clientAddresses.get(to);
+            OutgoingFrame frame = OutgoingFrame.parse(data);
+            if (address != null && frame != null) {
+                PacketHandler.sendFrame(address, frame, "❌ Erreur envoi routé à ");
+            }
+        }
+
+        public void onDirectoryChanged() {
+            PacketHandler.sendClientList();
+
+            remoteSinks.keySet().retainAll(cluster.remoteUsers());
+            for (String name : cluster.remoteUsers()) {
+                mailbox.register(name);
+                if (clientAddresses.containsKey(name) || !mailbox.hasPending(name)) continue;
+                mailbox.deliver(name, remoteSink(name));
+            }
+        }
 
+        static OfflineMailbox.Sink remoteSink(String name) {
+            return remoteSinks.computeIfAbsent(name, user -> new OfflineMailbox.Sink() {
+                public void deliver(byte[] frame) {
+                    cluster.route(name, frame);
+                }
+
+                public boolean stillOnline() {
+                    return cluster.ownsRemotely(name) && !clientAddresses.containsKey(name);
+                }
+            });
+        }
+    }
+
+    /**
+     * Trame sortante construite une seule fois par diffusion.
+     * La version compressée n'est calculée qu'au premier destinataire qui l'a négociée.
+     */
+    private static class OutgoingFrame {
+        private final String type;
+        private final byte[] plain;
+        private final byte[] payload;
+        private final String filename;
+        private byte[] compressed;
+
+        OutgoingFrame(String type, byte[] plain, byte[] payload, String filename) {
+            this.type = type;
+            this.plain = plain;
+            this.payload = payload;
+            this.filename = filename;
+        }
+
+        /** Reconstruit une trame reçue d'un autre noeud. Retourne null si elle est illisible. */
+        static OutgoingFrame parse(byte[] data) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                String type = in.readUTF();
+                if (type.equals("IMG") || type.equals("AUDIO") || type.equals("FILE")) {
+                    in.readUTF();
+                    String filename = in.readUTF();
+                    int size = in.readInt();
+                    if (size < 0 || size > in.available()) return null;
+                    byte[] payload = new byte[size];
+                    in.readFully(payload);
+                    return new OutgoingFrame(type, data, payload, filename);
+                }
+                return new OutgoingFrame(type, data, null, null);
             } catch (IOException e) {
-                System.out.println("❌ Erreur envoi liste à " + address + ": " + e.getMessage());
-                return false;
+                return null;
             }
         }
+
+        byte[] bytesFor(InetSocketAddress address) {
+            if (!compressionClients.contains(address)) return plain;
+            if (compressed == null) compressed = PayloadCodec.encode(plain, type, payload);
+            return compressed;
+        }
     }
 }
\ No newline at end of file
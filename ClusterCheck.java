@@ -0,0 +1,95 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Vérifie le lien de cluster avec deux ClusterLink sur 127.0.0.1, sans serveur de chat.
+ *
+ * Le noeud A héberge alice, le noeud B héberge bob. La vérification échoue (code de sortie 1) si :
+ *  - les annuaires ne convergent pas (A voit bob, B voit alice) ;
+ *  - une diffusion n'arrive pas exactement une fois sur l'autre noeud ;
+ *  - une trame privée n'arrive pas intacte chez le propriétaire (avec secret, l'en-queue signée
+ *    la fait dépasser un datagramme : elle est fragmentée) ;
+ *  - le noeud B arrêté n'est pas retiré de l'annuaire de A.
+ *
+ * Utilisation : java ClusterCheck [portA] [portB] [secret]   (secret vide : pairs configurés uniquement)
+ */
+public class ClusterCheck {
+    private static final long TIMEOUT_MS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int portA = args.length > 0 ? Integer.parseInt(args[0]) : 7601;
+        int portB = args.length > 1 ? Integer.parseInt(args[1]) : 7602;
+        String secret = args.length > 2 ? args[2] : "cluster-check";
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        Recorder recorderA = new Recorder();
+        Recorder recorderB = new Recorder();
+        ClusterLink a = new ClusterLink(loopback, portA, Collections.singletonList(new InetSocketAddress(loopback, portB)),
+                secret, () -> Collections.singletonList("alice"), recorderA);
+        ClusterLink b = new ClusterLink(loopback, portB, Collections.singletonList(new InetSocketAddress(loopback, portA)),
+                secret, () -> Collections.singletonList("bob"), recorderB);
+        a.start();
+        b.start();
+
+        boolean ok = true;
+
+        ok &= report("Annuaire convergé", waitFor(() -> a.ownsRemotely("bob") && b.ownsRemotely("alice")));
+
+        a.relay("diffusion de A".getBytes(), "alice");
+        b.relay("diffusion de B".getBytes(), "bob");
+        waitFor(() -> recorderA.relays.size() >= 1 && recorderB.relays.size() >= 1);
+        Thread.sleep(500); // Laisse arriver d'éventuels doublons
+        ok &= report("Une diffusion par noeud", recorderA.relays.size() == 1 && recorderB.relays.size() == 1
+                && recorderA.relays.get(0).equals("diffusion de B|bob")
+                && recorderB.relays.get(0).equals("diffusion de A|alice"));
+
+        byte[] privateFrame = new byte[TransportConfig.MAX_UDP_PAYLOAD - 20];
+        new Random(42).nextBytes(privateFrame);
+        boolean routed = a.route("bob", privateFrame);
+        waitFor(() -> !recorderB.routes.isEmpty());
+        ok &= report("Trame privée routée vers le propriétaire", routed && recorderA.routes.isEmpty()
+                && recorderB.routes.size() == 1 && recorderB.routes.get(0).equals("bob")
+                && Arrays.equals(privateFrame, recorderB.routedFrames.get(0)));
+
+        b.close();
+        ok &= report("Noeud arrêté retiré", waitFor(() -> !a.ownsRemotely("bob") && a.remoteUsers().isEmpty()));
+
+        a.close();
+        if (!ok) System.exit(1);
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.getAsBoolean()) return true;
+            Thread.sleep(50);
+        }
+        return condition.getAsBoolean();
+    }
+
+    private static boolean report(String check, boolean passed) {
+        System.out.println((passed ? "✅ " : "❌ ") + check);
+        return passed;
+    }
+
+    /** Enregistre ce que le lien livre au serveur. */
+    private static class Recorder implements ClusterLink.Listener {
+        final List<String> relays = new CopyOnWriteArrayList<>();
+        final List<String> routes = new CopyOnWriteArrayList<>();
+        final List<byte[]> routedFrames = new CopyOnWriteArrayList<>();
+
+        public void onRelay(byte[] frame, String excludeSender) {
+            relays.add(new String(frame) + "|" + excludeSender);
+        }
+
+        public void onRoute(String to, byte[] frame) {
+            routedFrames.add(frame);
+            routes.add(to);
+        }
+
+        public void onDirectoryChanged() {
+        }
+    }
+}
@@ -0,0 +1,415 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Lien UDP entre plusieurs noeuds ChatServerUDP.
+ *
+ * Trames échangées entre noeuds (port de cluster, distinct du port des clients) :
+ *  - GOSSIP : utilisateurs locaux du noeud + pairs connus (découverte transitive)
+ *  - RELAY  : trame de diffusion, envoyée une seule fois par noeud distant
+ *  - ROUTE  : trame privée, envoyée au noeud qui possède le destinataire
+ *
+ * Comme entre clients et serveur, une trame plus grande que la charge utile sûre vers le pair
+ * (TransportConfig.interfacePayloadLimit) est découpée par FrameFragmenter ; chaque fragment
+ * est authentifié séparément.
+ *
+ * Un noeud dont on n'a plus de nouvelles depuis NODE_TIMEOUT_MS est retiré de l'annuaire,
+ * et oublié complètement s'il ne fait pas partie des pairs configurés.
+ *
+ * Seules les trames authentifiées sont acceptées :
+ *  - sans secret partagé, uniquement celles des pairs configurés (pas de découverte) ;
+ *  - avec secret, chaque datagramme porte l'adresse de cluster de l'émetteur, un compteur
+ *    strictement croissant (issu de l'horloge, en microsecondes) et un HMAC-SHA256 tronqué.
+ *    À la réception, l'adresse doit être celle d'où vient le datagramme et le compteur doit
+ *    dépasser le dernier reçu de ce noeud : une trame capturée ne peut être rejouée ni
+ *    depuis une autre adresse, ni plus tard. Les pairs annoncés par un noeud authentifié sont adoptés.
+ */
+public class ClusterLink {
+    private static final long GOSSIP_INTERVAL_MS = 1000;
+    private static final long NODE_TIMEOUT_MS = 5000;
+    private static final long MAX_CLOCK_SKEW_MS = 30000;
+    private static final int MAC_LENGTH = 16;
+    // En-queue signée : adresse IPv6 (IPv4 mappée) + port + compteur + HMAC
+    private static final int ADDRESS_LENGTH = 16;
+    private static final int TRAILER_LENGTH = ADDRESS_LENGTH + 2 + 8 + MAC_LENGTH;
+    // Trame de client complète plus l'en-tête RELAY / ROUTE
+    private static final int MAX_CLUSTER_FRAME = TransportConfig.MAX_UDP_PAYLOAD + 1024;
+
+    public interface Listener {
+        /** Trame diffusée par un autre noeud, à livrer aux clients locaux. */
+        void onRelay(byte[] frame, String excludeSender);
+
+        /** Trame privée destinée à un client local. */
+        void onRoute(String to, byte[] frame);
+
+        /** Les utilisateurs distants ont changé : la LISTE doit être renvoyée. */
+        void onDirectoryChanged();
+    }
+
+    private final DatagramSocket socket;
+    private final Supplier<Collection<String>> localUsers;
+    private final Listener listener;
+    private final SecretKeySpec secret; // null : seuls les pairs configurés sont acceptés
+    private final ThreadLocal<Mac> macs;
+    private final AtomicLong counter = new AtomicLong();
+    // Dernier compteur accepté de chaque noeud authentifié
+    private final Map<InetSocketAddress, Long> lastCounters = new ConcurrentHashMap<>();
+    // Adresse source vers chaque pair, quand le lien écoute sur toutes les interfaces
+    private final Map<InetSocketAddress, byte[]> sourceAddresses = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Integer> payloadLimits = new ConcurrentHashMap<>();
+    private final FrameFragmenter fragmenter = new FrameFragmenter(MAX_CLUSTER_FRAME);
+
+    private final Set<InetSocketAddress> seeds = new HashSet<>();
+    // Pairs à qui envoyer le gossip : configurés, ou découverts et annoncés récemment
+    private final Map<InetSocketAddress, Long> peers = new ConcurrentHashMap<>();
+    // Noeuds entendus directement : seuls destinataires des RELAY et seuls pairs annoncés
+    private final Map<InetSocketAddress, Long> lastSeen = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Set<String>> usersByNode = new ConcurrentHashMap<>();
+    // Annuaire des utilisateurs distants : pseudo -> noeud propriétaire
+    private final Map<String, InetSocketAddress> directory = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cluster-gossip");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param bindAddress interface d'écoute du lien de cluster
+     * @param sharedSecret secret commun à tous les noeuds, ou null
+     */
+    public ClusterLink(InetAddress bindAddress, int port, Collection<InetSocketAddress> seeds, String sharedSecret,
+                       Supplier<Collection<String>> localUsers, Listener listener) throws SocketException {
+        this.socket = new DatagramSocket(new InetSocketAddress(bindAddress, port));
+        TransportConfig.fromSystemProperties(2000).apply(socket);
+        this.localUsers = localUsers;
+        this.listener = listener;
+        if (sharedSecret != null && !sharedSecret.isEmpty()) {
+            this.secret = new SecretKeySpec(sharedSecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+            this.macs = ThreadLocal.withInitial(this::newMac);
+        } else {
+            this.secret = null;
+            this.macs = null;
+        }
+        long now = System.currentTimeMillis();
+        for (InetSocketAddress seed : seeds) {
+            if (!isSelf(seed)) {
+                this.seeds.add(seed);
+                peers.put(seed, now);
+            }
+        }
+    }
+
+    public void start() {
+        Thread receiver = new Thread(this::listen, "cluster-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        TransportConfig.startDropMonitor(socket, 10000);
+        scheduler.scheduleAtFixedRate(() -> {
+            gossip();
+            expireNodes();
+        }, 0, GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+        socket.close();
+    }
+
+    /** Pseudos connectés sur les autres noeuds. */
+    public Set<String> remoteUsers() {
+        return directory.keySet();
+    }
+
+    public boolean ownsRemotely(String name) {
+        return directory.containsKey(name);
+    }
+
+    /** Envoie une trame de diffusion une fois à chaque noeud distant vivant. */
+    public void relay(byte[] frame, String excludeSender) {
+        for (InetSocketAddress peer : lastSeen.keySet()) {
+            send(peer, "RELAY", excludeSender, frame);
+        }
+    }
+
+    /** Transmet une trame privée au noeud propriétaire. Retourne false si le destinataire est inconnu. */
+    public boolean route(String to, byte[] frame) {
+        InetSocketAddress node = directory.get(to);
+        if (node == null) return false;
+        send(node, "ROUTE", to, frame);
+        return true;
+    }
+
+    /** Annonce immédiatement l'état local (connexion / déconnexion d'un client). */
+    public void gossip() {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+
+            out.writeUTF("GOSSIP");
+            Collection<String> users = localUsers.get();
+            out.writeInt(users.size());
+            for (String user : users) out.writeUTF(user);
+            List<InetSocketAddress> alive = new ArrayList<>(lastSeen.keySet());
+            out.writeInt(alive.size());
+            for (InetSocketAddress peer : alive) {
+                out.writeUTF(peer.getAddress().getHostAddress());
+                out.writeInt(peer.getPort());
+            }
+            out.flush();
+
+            byte[] body = baos.toByteArray();
+            for (InetSocketAddress peer : peers.keySet()) {
+                sendSealed(peer, body);
+            }
+        } catch (IOException e) {
+            System.out.println("❌ Erreur gossip: " + e.getMessage());
+        }
+    }
+
+    private void send(InetSocketAddress node, String type, String key, byte[] frame) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+
+            out.writeUTF(type);
+            out.writeUTF(key);
+            out.write(frame);
+            out.flush();
+
+            sendSealed(node, baos.toByteArray());
+        } catch (IOException e) {
+            System.out.println("❌ Erreur envoi au noeud " + node + ": " + e.getMessage());
+        }
+    }
+
+    /** Envoie {@code body} en un datagramme, ou en fragments s'il dépasse la charge utile sûre vers le noeud. */
+    private void sendSealed(InetSocketAddress node, byte[] body) throws IOException {
+        int limit = payloadLimits.computeIfAbsent(node, peer -> TransportConfig.interfacePayloadLimit(peer.getAddress()))
+                - (secret != null ? TRAILER_LENGTH : 0);
+        List<byte[]> parts = body.length > limit ? fragmenter.split(body, limit) : Collections.singletonList(body);
+        for (byte[] part : parts) {
+            byte[] data = seal(part, node);
+            socket.send(new DatagramPacket(data, data.length, node.getAddress(), node.getPort()));
+        }
+    }
+
+    private void listen() {
+        byte[] buffer = new byte[65507];
+
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+
+                InetSocketAddress from = new InetSocketAddress(packet.getAddress(), packet.getPort());
+                int length = authenticatedLength(from, packet.getData(), packet.getLength());
+                if (length < 0) continue;
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(), 0, length));
+                String type = in.readUTF();
+                if (type.equals(FrameFragmenter.TYPE)) {
+                    byte[] frame = fragmenter.add(from, in);
+                    if (frame == null) continue;
+                    in = new DataInputStream(new ByteArrayInputStream(frame));
+                    type = in.readUTF();
+                }
+
+                if (type.equals("GOSSIP")) {
+                    handleGossip(from, in);
+                } else if (type.equals("RELAY")) {
+                    String excludeSender = in.readUTF();
+                    listener.onRelay(in.readAllBytes(), excludeSender);
+                } else if (type.equals("ROUTE")) {
+                    String to = in.readUTF();
+                    listener.onRoute(to, in.readAllBytes());
+                }
+            } catch (SocketException e) {
+                break;
+            } catch (IOException e) {
+                System.out.println("⚠️ Trame de cluster invalide: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleGossip(InetSocketAddress from, DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Set<String> users = new HashSet<>();
+        for (int i = 0; i < count; i++) users.add(in.readUTF());
+
+        long now = System.currentTimeMillis();
+        int peerCount = in.readInt();
+        for (int i = 0; i < peerCount; i++) {
+            InetSocketAddress peer = new InetSocketAddress(in.readUTF(), in.readInt());
+            // Sans secret, un pair annoncé ne pourrait pas être authentifié : inutile de l'adopter
+            if (secret != null && !isSelf(peer)) peers.put(peer, now);
+        }
+
+        peers.put(from, now);
+        if (lastSeen.put(from, now) == null) {
+            System.out.println("🔗 Noeud " + from + " rejoint le cluster");
+        }
+
+        Set<String> previous = usersByNode.put(from, users);
+        if (!users.equals(previous)) {
+            rebuildDirectory();
+            listener.onDirectoryChanged();
+        }
+    }
+
+    private void expireNodes() {
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        for (Map.Entry<InetSocketAddress, Long> entry : lastSeen.entrySet()) {
+            if (now - entry.getValue() > NODE_TIMEOUT_MS) {
+                InetSocketAddress node = entry.getKey();
+                lastSeen.remove(node);
+                changed |= usersByNode.remove(node) != null;
+                System.out.println("🔴 Noeud " + node + " injoignable, retiré du cluster");
+            }
+        }
+        // Les pairs découverts qui ne donnent plus signe de vie sont oubliés
+        peers.entrySet().removeIf(entry -> !seeds.contains(entry.getKey())
+                && now - entry.getValue() > NODE_TIMEOUT_MS);
+        if (changed) {
+            rebuildDirectory();
+            listener.onDirectoryChanged();
+        }
+    }
+
+    private synchronized void rebuildDirectory() {
+        Map<String, InetSocketAddress> updated = new HashMap<>();
+        for (Map.Entry<InetSocketAddress, Set<String>> entry : usersByNode.entrySet()) {
+            for (String user : entry.getValue()) updated.put(user, entry.getKey());
+        }
+        directory.keySet().retainAll(updated.keySet());
+        directory.putAll(updated);
+    }
+
+    /**
+     * Vérifie l'origine du datagramme. Retourne la longueur utile (sans l'en-queue
+     * d'authentification), ou -1 si la trame doit être ignorée.
+     */
+    private int authenticatedLength(InetSocketAddress from, byte[] data, int length) {
+        if (secret == null) return seeds.contains(from) ? length : -1;
+
+        int bodyLength = length - TRAILER_LENGTH;
+        if (bodyLength < 2) return -1;
+        int signedLength = length - MAC_LENGTH;
+        byte[] expected = mac(data, signedLength);
+        byte[] actual = Arrays.copyOfRange(data, signedLength, length);
+        if (!MessageDigest.isEqual(expected, actual)) return -1;
+
+        // L'émetteur déclaré doit être celui qui a envoyé le datagramme
+        int pos = bodyLength;
+        if (!Arrays.equals(Arrays.copyOfRange(data, pos, pos + ADDRESS_LENGTH), mapped(from.getAddress()))) return -1;
+        pos += ADDRESS_LENGTH;
+        int port = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+        if (port != from.getPort()) return -1;
+        pos += 2;
+
+        long value = 0;
+        for (int i = 0; i < 8; i++) value = (value << 8) | (data[pos + i] & 0xFF);
+        if (Math.abs(System.currentTimeMillis() - value / 1000) > MAX_CLOCK_SKEW_MS) return -1;
+        Long last = lastCounters.get(from);
+        if (last != null && value <= last) return -1;
+        lastCounters.put(from, value);
+        return bodyLength;
+    }
+
+    /** Ajoute adresse d'émission, compteur et HMAC quand un secret est configuré. */
+    private byte[] seal(byte[] body, InetSocketAddress peer) {
+        if (secret == null) return body;
+
+        byte[] sealed = Arrays.copyOf(body, body.length + TRAILER_LENGTH);
+        int pos = body.length;
+        System.arraycopy(sourceAddress(peer), 0, sealed, pos, ADDRESS_LENGTH);
+        pos += ADDRESS_LENGTH;
+        int port = socket.getLocalPort();
+        sealed[pos++] = (byte) (port >>> 8);
+        sealed[pos++] = (byte) port;
+
+        // Compteur en microsecondes d'horloge : il reste croissant après un redémarrage du noeud
+        long now = System.currentTimeMillis() * 1000;
+        long value = counter.updateAndGet(previous -> Math.max(previous + 1, now));
+        for (int i = 7; i >= 0; i--) {
+            sealed[pos + i] = (byte) value;
+            value >>>= 8;
+        }
+        pos += 8;
+        System.arraycopy(mac(sealed, pos), 0, sealed, pos, MAC_LENGTH);
+        return sealed;
+    }
+
+    /** Adresse vue par {@code peer} : celle du lien, ou celle choisie par le routage si le lien écoute partout. */
+    private byte[] sourceAddress(InetSocketAddress peer) {
+        InetAddress local = socket.getLocalAddress();
+        if (!local.isAnyLocalAddress()) return mapped(local);
+        return sourceAddresses.computeIfAbsent(peer, node -> {
+            try (DatagramSocket probe = new DatagramSocket()) {
+                probe.connect(node);
+                return mapped(probe.getLocalAddress());
+            } catch (SocketException e) {
+                return mapped(local);
+            }
+        });
+    }
+
+    /** Adresse sur 16 octets, les IPv4 au format IPv6 mappé. */
+    private static byte[] mapped(InetAddress address) {
+        byte[] raw = address.getAddress();
+        if (raw.length == ADDRESS_LENGTH) return raw;
+        byte[] result = new byte[ADDRESS_LENGTH];
+        result[10] = (byte) 0xFF;
+        result[11] = (byte) 0xFF;
+        System.arraycopy(raw, 0, result, 12, raw.length);
+        return result;
+    }
+
+    private byte[] mac(byte[] data, int length) {
+        Mac mac = macs.get();
+        mac.update(data, 0, length);
+        return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean isSelf(InetSocketAddress address) {
+        if (address.getPort() != socket.getLocalPort() || address.getAddress() == null) return false;
+        try {
+            return address.getAddress().isLoopbackAddress() || address.getAddress().isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(address.getAddress()) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /** Analyse "hote:port,hote:port". */
+    public static List<InetSocketAddress> parsePeers(String spec) {
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) continue;
+            int colon = part.lastIndexOf(':');
+            result.add(new InetSocketAddress(part.substring(0, colon), Integer.parseInt(part.substring(colon + 1))));
+        }
+        return result;
+    }
+}
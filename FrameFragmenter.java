@@ -0,0 +1,126 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Découpe applicative des trames à la taille de datagramme sûre (voir TransportConfig),
+ * pour éviter la fragmentation IP où la perte d'un seul fragment perd toute la trame.
+ *
+ * Fragment : writeUTF("FRAG") | long idMessage | short index | short total | morceau
+ * Les trames partielles sont abandonnées après REASSEMBLY_TIMEOUT_MS ou quand la table est pleine.
+ */
+public class FrameFragmenter {
+    public static final String TYPE = "FRAG";
+    public static final int HEADER_SIZE = 2 + TYPE.length() + 8 + 2 + 2;
+
+    private static final int MAX_PENDING = 256;
+    private static final long REASSEMBLY_TIMEOUT_MS = 5000;
+
+    private final AtomicLong nextId = new AtomicLong(new Random().nextLong());
+    private final int maxFrame;
+
+    private final Map<String, Partial> pending = new LinkedHashMap<String, Partial>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Partial> eldest) {
+            return size() > MAX_PENDING;
+        }
+    };
+
+    public FrameFragmenter() {
+        this(TransportConfig.MAX_UDP_PAYLOAD);
+    }
+
+    /** @param maxFrame taille maximale d'une trame réassemblée */
+    public FrameFragmenter(int maxFrame) {
+        this.maxFrame = maxFrame;
+    }
+
+    /** Découpe {@code frame} en fragments d'au plus {@code maxDatagram} octets. */
+    public List<byte[]> split(byte[] frame, int maxDatagram) throws IOException {
+        int chunkSize = maxDatagram - HEADER_SIZE;
+        int count = (frame.length + chunkSize - 1) / chunkSize;
+        if (chunkSize <= 0 || count > Short.MAX_VALUE) throw new IOException("Taille de datagramme trop petite");
+
+        long id = nextId.getAndIncrement();
+        List<byte[]> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int offset = i * chunkSize;
+            int length = Math.min(chunkSize, frame.length - offset);
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(HEADER_SIZE + length);
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeUTF(TYPE);
+            out.writeLong(id);
+            out.writeShort(i);
+            out.writeShort(count);
+            out.write(frame, offset, length);
+            out.flush();
+            fragments.add(baos.toByteArray());
+        }
+        return fragments;
+    }
+
+    /**
+     * Ajoute un fragment dont le type "FRAG" vient d'être lu dans {@code in}.
+     * Retourne la trame complète quand tous les morceaux sont arrivés, null sinon.
+     */
+    public byte[] add(SocketAddress from, DataInputStream in) throws IOException {
+        long id = in.readLong();
+        int index = in.readShort();
+        int count = in.readShort();
+        if (count <= 0 || index < 0 || index >= count) throw new IOException("Fragment invalide");
+        byte[] chunk = in.readAllBytes();
+
+        String key = from + "#" + id;
+        long now = System.currentTimeMillis();
+        synchronized (pending) {
+            expire(now);
+
+            Partial partial = pending.get(key);
+            if (partial == null) {
+                partial = new Partial(count, now);
+                pending.put(key, partial);
+            }
+            if (partial.chunks.length != count || partial.chunks[index] != null) return null;
+
+            partial.chunks[index] = chunk;
+            partial.received++;
+            partial.size += chunk.length;
+            if (partial.size > maxFrame) {
+                pending.remove(key);
+                throw new IOException("Trame fragmentée trop volumineuse");
+            }
+            if (partial.received < count) return null;
+
+            pending.remove(key);
+            byte[] frame = new byte[partial.size];
+            int offset = 0;
+            for (byte[] part : partial.chunks) {
+                System.arraycopy(part, 0, frame, offset, part.length);
+                offset += part.length;
+            }
+            return frame;
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Partial> it = pending.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().created <= REASSEMBLY_TIMEOUT_MS) break; // Ordre d'insertion
+            it.remove();
+        }
+    }
+
+    private static class Partial {
+        final byte[][] chunks;
+        final long created;
+        int received;
+        int size;
+
+        Partial(int count, long created) {
+            this.chunks = new byte[count][];
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inonde un serveur en marche et mesure si un utilisateur légitime reste servi.
+ *
+ * Le client légitime se connecte depuis 127.0.0.1 et s'envoie des messages privés ;
+ * les threads d'inondation émettent depuis une autre adresse de bouclage des trames
+ * malformées, des CONNECT en rafale, des jetons de session forgés et des gros paquets.
+ *
+ * Utilisation : java IngressFloodBenchmark [port] [threads] [secondes] [adresseInondation]
+ */
+public class IngressFloodBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        InetAddress floodAddress = InetAddress.getByName(args.length > 3 ? args[3] : "127.0.0.2");
+        InetAddress server = InetAddress.getByName("127.0.0.1");
+
+        DatagramSocket client = new DatagramSocket(0, server);
+        client.setSoTimeout(1000);
+        String name = "bench" + new Random().nextInt(10000);
+        long token = connect(client, server, port, name);
+        System.out.println("Session obtenue pour " + name);
+
+        AtomicLong floodPackets = new AtomicLong();
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        List<Thread> flooders = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> flood(floodAddress, server, port, deadline, floodPackets));
+            t.start();
+            flooders.add(t);
+        }
+
+        List<Long> latencies = new ArrayList<>();
+        int sent = 0;
+        while (System.currentTimeMillis() < deadline) {
+            sent++;
+            String marker = "ping-" + sent;
+            long start = System.nanoTime();
+            send(client, server, port, session(token, textFrame(name, name, marker)));
+            if (awaitText(client, marker)) latencies.add((System.nanoTime() - start) / 1000);
+            Thread.sleep(100);
+        }
+        for (Thread t : flooders) t.join();
+        send(client, server, port, session(token, utfFrame("DISCONNECT", name)));
+
+        Collections.sort(latencies);
+        System.out.printf("Paquets d'inondation: %d (%.0f/s)%n", floodPackets.get(), floodPackets.get() / (double) seconds);
+        System.out.printf("Messages légitimes: %d envoyés, %d reçus%n", sent, latencies.size());
+        if (!latencies.isEmpty()) {
+            System.out.printf("Latence µs - p50: %d, p99: %d, max: %d%n",
+                    latencies.get(latencies.size() / 2),
+                    latencies.get(Math.min(latencies.size() - 1, latencies.size() * 99 / 100)),
+                    latencies.get(latencies.size() - 1));
+        }
+    }
+
+    private static void flood(InetAddress from, InetAddress server, int port, long deadline, AtomicLong counter) {
+        Random random = new Random();
+        byte[] junk = new byte[60000];
+        random.nextBytes(junk);
+        try (DatagramSocket socket = new DatagramSocket(0, from)) {
+            while (System.currentTimeMillis() < deadline) {
+                byte[] data;
+                switch (random.nextInt(4)) {
+                    case 0: data = Arrays.copyOf(junk, 1 + random.nextInt(1400)); break;
+                    case 1: data = utfFrame("CONNECT", "flood" + random.nextInt()); break;
+                    case 2: data = session(random.nextLong(), textFrame("x", "TOUS", "spam")); break;
+                    default: data = junk;
+                }
+                send(socket, server, port, data);
+                counter.incrementAndGet();
+            }
+        } catch (IOException e) {
+            System.out.println("Inondation interrompue: " + e.getMessage());
+        }
+    }
+
+    private static long connect(DatagramSocket client, InetAddress server, int port, String name) throws IOException {
+        send(client, server, port, utfFrame("CONNECT", name));
+        byte[] buffer = new byte[65507];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            client.receive(packet);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(), 0, packet.getLength()));
+            if (in.readUTF().equals("SESSION")) return in.readLong();
+        }
+    }
+
+    private static boolean awaitText(DatagramSocket client, String marker) throws IOException {
+        byte[] buffer = new byte[65507];
+        try {
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                client.receive(packet);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(), 0, packet.getLength()));
+                if (in.readUTF().equals("TEXT")) {
+                    in.readUTF();
+                    if (in.readUTF().endsWith(marker)) return true;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    private static void send(DatagramSocket socket, InetAddress server, int port, byte[] data) throws IOException {
+        socket.send(new DatagramPacket(data, data.length, server, port));
+    }
+
+    private static byte[] utfFrame(String... fields) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            for (String field : fields) out.writeUTF(field);
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] textFrame(String name, String dest, String msg) {
+        return utfFrame("TEXT", name, dest, "00:00:00", msg);
+    }
+
+    private static byte[] session(long token, byte[] frame) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeUTF(IngressGuard.SESSION_TYPE);
+            out.writeLong(token);
+            out.write(frame);
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
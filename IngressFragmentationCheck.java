@@ -0,0 +1,78 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Vérifie qu'une trame IMG puis une trame FILE de 60 Ko, découpées à la taille de repli
+ * (et aux tailles sondées courantes), passent toutes IngressGuard et se réassemblent.
+ *
+ * Utilisation : java IngressFragmentationCheck   (code de sortie 1 en cas d'échec)
+ */
+public class IngressFragmentationCheck {
+    private static final int SESSION_OVERHEAD = 2 + IngressGuard.SESSION_TYPE.length() + 8;
+
+    public static void main(String[] args) throws IOException {
+        int[] payloadSizes = {TransportConfig.FALLBACK_PAYLOAD, 1232, 1400, 1472};
+        boolean ok = true;
+
+        for (int payloadSize : payloadSizes) {
+            IngressGuard guard = new IngressGuard();
+            InetSocketAddress client = new InetSocketAddress(InetAddress.getLoopbackAddress(), 40000);
+            IngressGuard.Session session = guard.openSession("alice", client);
+            FrameFragmenter sender = new FrameFragmenter();
+            FrameFragmenter receiver = new FrameFragmenter();
+
+            for (String type : new String[]{"IMG", "FILE"}) {
+                byte[] frame = binaryFrame(type, 60000);
+                List<byte[]> fragments = sender.split(frame, payloadSize - SESSION_OVERHEAD);
+
+                int accepted = 0;
+                byte[] reassembled = null;
+                for (byte[] fragment : fragments) {
+                    byte[] datagram = withSession(session.token, fragment);
+                    if (datagram.length > payloadSize) throw new IllegalStateException("Datagramme trop grand");
+                    if (!guard.accept(datagram, datagram.length, client.getAddress(), client.getPort())) continue;
+                    accepted++;
+
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(datagram));
+                    in.readUTF();
+                    in.readLong();
+                    in.readUTF();
+                    byte[] result = receiver.add(client, in);
+                    if (result != null) reassembled = result;
+                }
+
+                boolean passed = accepted == fragments.size() && Arrays.equals(frame, reassembled);
+                ok &= passed;
+                System.out.printf("%-4s 60 Ko à %4d octets : %d/%d fragments acceptés, réassemblage %s%n",
+                        type, payloadSize, accepted, fragments.size(), passed ? "OK" : "ÉCHEC");
+            }
+        }
+
+        if (!ok) System.exit(1);
+    }
+
+    private static byte[] binaryFrame(String type, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeUTF(type);
+        out.writeUTF("alice");
+        out.writeUTF("bob");
+        out.writeUTF("piece.bin");
+        out.writeInt(data.length);
+        out.write(data);
+        return baos.toByteArray();
+    }
+
+    private static byte[] withSession(long token, byte[] frame) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeUTF(IngressGuard.SESSION_TYPE);
+        out.writeLong(token);
+        out.write(frame);
+        return baos.toByteArray();
+    }
+}
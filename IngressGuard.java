@@ -0,0 +1,268 @@
+import java.net.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Filtre d'entrée du serveur, appliqué sur le buffer de réception avant toute copie.
+ *
+ *  - l'en-tête (longueur + type) est validé directement dans le buffer, sans allocation ;
+ *  - hors CONNECT, chaque trame doit être préfixée par writeUTF("SESS") + writeLong(jeton),
+ *    le jeton étant remis par le serveur dans une trame SESSION après CONNECT ;
+ *  - chaque source est limitée par deux seaux à jetons, comptés en octets : un par IP
+ *    (large, tolère le NAT) et un par IP:port, plus un seau CONNECT par IP très strict : chaque connexion coûte une
+ *    diffusion et une LISTE à tous les clients. Les seaux sont rangés dans une table à verrous répartis et bornée (LRU).
+ */
+public class IngressGuard {
+    public static final String SESSION_TYPE = "SESS";
+
+    private static final String[] KNOWN_TYPES = {"CONNECT", "TEXT", "IMG", "AUDIO", "FILE", "DISCONNECT",
+            PayloadCodec.TYPE, FrameFragmenter.TYPE, "PROBE", "MTU", "PING"};
+    private static final byte[][] KNOWN_TYPE_BYTES = new byte[KNOWN_TYPES.length][];
+    private static final byte[] SESSION_BYTES = SESSION_TYPE.getBytes();
+    private static final int MAX_TYPE_LENGTH = 10;
+
+    // Coût d'un datagramme, en octets : sa taille (au moins MIN_DATAGRAM_COST) plus PACKET_COST
+    // une fois par trame. Les fragments de suite (index > 0) ne repaient pas PACKET_COST :
+    // une trame découpée coûte à peu près comme la même trame entière.
+    private static final int PACKET_COST = 2048;
+    private static final int MIN_DATAGRAM_COST = 512;
+    // La source doit pouvoir envoyer d'un coup quelques trames maximales, découpées ou non
+    private static final double SOURCE_CAPACITY = 4 * (TransportConfig.MAX_UDP_PAYLOAD + PACKET_COST);
+    private static final double SOURCE_REFILL_PER_SEC = SOURCE_CAPACITY / 2;
+    private static final double HOST_CAPACITY = 10 * SOURCE_CAPACITY, HOST_REFILL_PER_SEC = 10 * SOURCE_REFILL_PER_SEC;
+    private static final double CONNECT_CAPACITY = 10, CONNECT_REFILL_PER_SEC = 0.5;
+
+    // Le client envoie PING toutes les KEEPALIVE_MS ; une session muette depuis SESSION_IDLE_MS
+    // est expirée, et son pseudo peut être repris (redémarrage après un plantage)
+    public static final long KEEPALIVE_MS = 15000;
+    private static final long SESSION_IDLE_MS = 3 * KEEPALIVE_MS;
+    private static final long LOG_INTERVAL_MS = 10000;
+
+    static {
+        for (int i = 0; i < KNOWN_TYPES.length; i++) KNOWN_TYPE_BYTES[i] = KNOWN_TYPES[i].getBytes();
+    }
+
+    private final BucketMap<InetSocketAddress> sourceBuckets = new BucketMap<>(16, 1024, SOURCE_CAPACITY, SOURCE_REFILL_PER_SEC);
+    private final BucketMap<InetAddress> hostBuckets = new BucketMap<>(16, 1024, HOST_CAPACITY, HOST_REFILL_PER_SEC);
+    private final BucketMap<InetAddress> connectBuckets = new BucketMap<>(16, 1024, CONNECT_CAPACITY, CONNECT_REFILL_PER_SEC);
+
+    private final Map<Long, Session> sessionsByToken = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessionsByName = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong unauthenticated = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private volatile long lastLog = 0;
+
+    public static class Session {
+        final String name;
+        final InetSocketAddress address;
+        final long token;
+        volatile long lastActivity;
+
+        Session(String name, InetSocketAddress address, long token) {
+            this.name = name;
+            this.address = address;
+            this.token = token;
+            this.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Décide, à partir du buffer de réception brut, si le datagramme mérite d'être copié et traité.
+     */
+    public boolean accept(byte[] buffer, int length, InetAddress address, int port) {
+        int typeLength = typeLength(buffer, 0, length);
+        if (typeLength < 0) return reject(malformed);
+
+        if (matches(buffer, 2, typeLength, SESSION_BYTES)) {
+            int innerOffset = 2 + typeLength + 8;
+            int innerLength = typeLength(buffer, innerOffset, length);
+            int innerType = innerLength < 0 ? -1 : knownType(buffer, innerOffset + 2, innerLength);
+            if (innerType < 0) return reject(malformed);
+            // Un CONNECT doit passer par le seau CONNECT : jamais à l'intérieur d'une session
+            if (KNOWN_TYPES[innerType].equals("CONNECT")) return reject(unauthenticated);
+
+            Session session = sessionsByToken.get(readLong(buffer, 2 + typeLength));
+            if (session == null || session.address.getPort() != port
+                    || !session.address.getAddress().equals(address)) {
+                return reject(unauthenticated);
+            }
+            boolean continuation = KNOWN_TYPES[innerType].equals(FrameFragmenter.TYPE)
+                    && fragmentIndex(buffer, innerOffset + 2 + innerLength, length) > 0;
+            if (!allow(address, port, cost(length, continuation))) return reject(throttled);
+            session.lastActivity = System.currentTimeMillis();
+            return true;
+        }
+
+        int type = knownType(buffer, 2, typeLength);
+        if (type < 0) return reject(malformed);
+        if (!KNOWN_TYPES[type].equals("CONNECT")) return reject(unauthenticated);
+        if (!allow(address, port, cost(length, false)) || !connectBuckets.tryAcquire(address, 1, System.nanoTime())) {
+            return reject(throttled);
+        }
+        return true;
+    }
+
+    /**
+     * Ouvre une session pour {@code name}. Retourne null si le pseudo est tenu par une autre
+     * adresse encore active.
+     */
+    public synchronized Session openSession(String name, InetSocketAddress address) {
+        Session existing = sessionsByName.get(name);
+        if (existing != null && !existing.address.equals(address)
+                && System.currentTimeMillis() - existing.lastActivity < SESSION_IDLE_MS) {
+            return null;
+        }
+        if (existing != null) sessionsByToken.remove(existing.token);
+
+        long token;
+        do {
+            token = random.nextLong();
+        } while (sessionsByToken.containsKey(token));
+
+        Session session = new Session(name, address, token);
+        sessionsByToken.put(token, session);
+        sessionsByName.put(name, session);
+        return session;
+    }
+
+    public Session session(long token) {
+        return sessionsByToken.get(token);
+    }
+
+    public synchronized void closeSession(String name) {
+        Session session = sessionsByName.remove(name);
+        if (session != null) sessionsByToken.remove(session.token);
+    }
+
+    /** Ferme et retourne les sessions restées muettes plus de SESSION_IDLE_MS. */
+    public synchronized List<Session> expireIdleSessions() {
+        long now = System.currentTimeMillis();
+        List<Session> expired = new ArrayList<>();
+        for (Session session : sessionsByName.values()) {
+            if (now - session.lastActivity > SESSION_IDLE_MS) expired.add(session);
+        }
+        for (Session session : expired) {
+            sessionsByName.remove(session.name);
+            sessionsByToken.remove(session.token);
+        }
+        return expired;
+    }
+
+    private static double cost(int length, boolean continuation) {
+        return Math.max(length, MIN_DATAGRAM_COST) + (continuation ? 0 : PACKET_COST);
+    }
+
+    /** Index du fragment dont l'en-tête FRAG (après le type) commence à {@code offset}, ou -1. */
+    private static int fragmentIndex(byte[] buffer, int offset, int length) {
+        int indexOffset = offset + 8; // après l'identifiant de message
+        if (indexOffset + 2 > length) return -1;
+        return (short) (((buffer[indexOffset] & 0xFF) << 8) | (buffer[indexOffset + 1] & 0xFF));
+    }
+
+    private boolean allow(InetAddress address, int port, double cost) {
+        long now = System.nanoTime();
+        return hostBuckets.tryAcquire(address, cost, now)
+                && sourceBuckets.tryAcquire(new InetSocketAddress(address, port), cost, now);
+    }
+
+    private boolean reject(AtomicLong counter) {
+        counter.incrementAndGet();
+        long now = System.currentTimeMillis();
+        if (now - lastLog > LOG_INTERVAL_MS) {
+            lastLog = now;
+            System.out.println("🛡️ Trames rejetées - malformées: " + malformed.get()
+                    + ", sans session: " + unauthenticated.get() + ", limitées: " + throttled.get());
+        }
+        return false;
+    }
+
+    /** Longueur du writeUTF lu à {@code offset}, ou -1 si l'en-tête est invalide. */
+    private static int typeLength(byte[] buffer, int offset, int length) {
+        if (offset + 2 > length) return -1;
+        int typeLength = ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+        if (typeLength == 0 || typeLength > MAX_TYPE_LENGTH || offset + 2 + typeLength > length) return -1;
+        return typeLength;
+    }
+
+    private static int knownType(byte[] buffer, int offset, int typeLength) {
+        for (int i = 0; i < KNOWN_TYPE_BYTES.length; i++) {
+            if (matches(buffer, offset, typeLength, KNOWN_TYPE_BYTES[i])) return i;
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] buffer, int offset, int length, byte[] expected) {
+        if (length != expected.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) value = (value << 8) | (buffer[offset + i] & 0xFF);
+        return value;
+    }
+
+    /** Table de seaux à jetons répartie en segments verrouillés séparément, chacun borné en LRU. */
+    private static class BucketMap<K> {
+        private final List<Stripe<K>> stripes;
+        private final double capacity;
+        private final double refillPerNano;
+
+        BucketMap(int stripeCount, int maxPerStripe, double capacity, double refillPerSecond) {
+            this.stripes = new ArrayList<>(stripeCount);
+            for (int i = 0; i < stripeCount; i++) stripes.add(new Stripe<>(maxPerStripe));
+            this.capacity = capacity;
+            this.refillPerNano = refillPerSecond / 1e9;
+        }
+
+        boolean tryAcquire(K key, double cost, long now) {
+            int h = key.hashCode();
+            Stripe<K> stripe = stripes.get(((h ^ (h >>> 16)) & 0x7FFFFFFF) % stripes.size());
+            synchronized (stripe) {
+                Bucket bucket = stripe.get(key);
+                if (bucket == null) {
+                    bucket = new Bucket(capacity, now);
+                    stripe.put(key, bucket);
+                }
+                bucket.tokens = Math.min(capacity, bucket.tokens + (now - bucket.lastRefill) * refillPerNano);
+                bucket.lastRefill = now;
+                if (bucket.tokens < cost) return false;
+                bucket.tokens -= cost;
+                return true;
+            }
+        }
+    }
+
+    private static class Stripe<K> extends LinkedHashMap<K, Bucket> {
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+
+        Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Bucket> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    private static class Bucket {
+        double tokens;
+        long lastRefill;
+
+        Bucket(double tokens, long lastRefill) {
+            this.tokens = tokens;
+            this.lastRefill = lastRefill;
+        }
+    }
+}
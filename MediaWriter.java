@@ -0,0 +1,137 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Écriture asynchrone des médias reçus, sur un thread dédié.
+ *
+ * Le thread de réception ne fait que déposer les données dans une file bornée.
+ * Le thread d'écriture vide la file par lots ; avec fsync activé, les fichiers
+ * d'un même lot sont synchronisés ensemble avant d'être signalés comme écrits.
+ * Un travail sans fichier (médias gardés en mémoire) n'exécute que son rappel,
+ * dans l'ordre des autres médias.
+ */
+public class MediaWriter {
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int MAX_BATCH = 16;
+    private static final long CLOSE_TIMEOUT_MS = 2000;
+
+    private static final Job POISON = new Job(null, null, null);
+
+    private final BlockingQueue<Job> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final boolean fsync;
+    private final Thread thread;
+
+    public MediaWriter(boolean fsync) {
+        this.fsync = fsync;
+        this.thread = new Thread(this::run, "media-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Met en file l'écriture de {@code data} dans {@code file}, puis l'appel de {@code onWritten}.
+     * Avec {@code file} null, seul {@code onWritten} est exécuté sur le thread d'écriture.
+     * Retourne false, sans attendre, si la file est pleine : la réception ne doit jamais bloquer.
+     */
+    public boolean submit(File file, byte[] data, Runnable onWritten) {
+        return queue.offer(new Job(file, data, onWritten));
+    }
+
+    /**
+     * Termine les écritures en attente puis arrête le thread, sans attendre plus de
+     * CLOSE_TIMEOUT_MS : appelé depuis la fermeture de la fenêtre, il ne doit pas figer l'interface.
+     */
+    public void close() {
+        try {
+            if (!queue.offer(POISON, CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                System.out.println("⚠️ Disque trop lent : " + queue.size() + " médias non enregistrés");
+                thread.interrupt();
+                return;
+            }
+            thread.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Job> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                boolean stop = batch.remove(POISON);
+                writeBatch(batch);
+                batch.clear();
+                if (stop) return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBatch(List<Job> batch) {
+        List<FileChannel> pending = new ArrayList<>(batch.size());
+        List<Job> written = new ArrayList<>(batch.size());
+
+        for (Job job : batch) {
+            if (job.file == null) {
+                written.add(job);
+                continue;
+            }
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(job.file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                ByteBuffer buffer = ByteBuffer.wrap(job.data);
+                while (buffer.hasRemaining()) channel.write(buffer);
+                pending.add(channel);
+                written.add(job);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                e.printStackTrace();
+            }
+        }
+
+        // Un seul passage de synchronisation pour tout le lot
+        for (FileChannel channel : pending) {
+            try {
+                if (fsync) channel.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                closeQuietly(channel);
+            }
+        }
+
+        for (Job job : written) {
+            if (job.onWritten != null) job.onWritten.run();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignorer
+        }
+    }
+
+    private static class Job {
+        final File file;
+        final byte[] data;
+        final Runnable onWritten;
+
+        Job(File file, byte[] data, Runnable onWritten) {
+            this.file = file;
+            this.data = data;
+            this.onWritten = onWritten;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Boîtes aux lettres des utilisateurs hors ligne (messages et fichiers privés).
+ *
+ * Chaque destinataire connu a une file FIFO bornée. Les trames restent en mémoire tant que le
+ * budget global MEMORY_BUDGET n'est pas atteint ; au-delà, elles sont ajoutées au fichier
+ * mailbox/<pseudo en hexa>.q (longueur + trame), et toutes les suivantes aussi pour garder l'ordre.
+ * Seule la partie sur disque survit au redémarrage du serveur : les trames en mémoire sont perdues.
+ * La position de lecture du fichier est sauvegardée dans mailbox/<pseudo en hexa>.off après chaque
+ * lot livré ; après un arrêt brutal, au plus le dernier lot est livré une seconde fois.
+ *
+ * À la reconnexion, la file est vidée par un thread dédié, par petits lots espacés,
+ * pour ne pas affamer le trafic en direct. Une reconnexion pendant la livraison remplace
+ * simplement le destinataire de la livraison en cours.
+ *
+ * Le disque est borné par destinataire et globalement (DISK_BUDGET). Une boîte vide dont le
+ * pseudo n'a pas été vu depuis FORGET_AFTER_MS est oubliée : le pseudo redevient inconnu.
+ */
+public class OfflineMailbox {
+    private static final int MAX_ITEMS_PER_RECIPIENT = 10000;
+    private static final long MAX_DISK_BYTES_PER_RECIPIENT = 64L * 1024 * 1024;
+    private static final long MEMORY_BUDGET = 16L * 1024 * 1024;
+    private static final long DISK_BUDGET = 512L * 1024 * 1024;
+    private static final long FORGET_AFTER_MS = 7L * 24 * 3600 * 1000;
+    private static final long FORGET_INTERVAL_MS = 3600 * 1000;
+
+    // Rythme de livraison par destinataire : au plus BATCH_ITEMS / BATCH_BYTES toutes les PACE_MS
+    private static final int BATCH_ITEMS = 32;
+    private static final int BATCH_BYTES = 48 * 1024;
+    private static final long PACE_MS = 20;
+    // Laisse au client le temps de négocier compression et taille de datagramme
+    private static final long START_DELAY_MS = 500;
+
+    public interface Sink {
+        /** Envoie une trame au destinataire reconnecté. */
+        void deliver(byte[] frame);
+
+        /** False dès que le destinataire s'est de nouveau déconnecté. */
+        boolean stillOnline();
+    }
+
+    private final File directory;
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mailbox-delivery");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public OfflineMailbox(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+        reload();
+        scheduler.scheduleAtFixedRate(this::forgetIdle, FORGET_INTERVAL_MS, FORGET_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Déclare un pseudo vu à l'instant : seuls les utilisateurs connectés récemment,
+     * ou ayant encore du courrier en attente, en reçoivent.
+     */
+    public void register(String name) {
+        mailboxes.computeIfAbsent(name, Mailbox::new).lastSeen = System.currentTimeMillis();
+    }
+
+    /** Met la trame en attente. Retourne false si le destinataire est inconnu ou sa file pleine. */
+    public boolean offer(String name, byte[] frame) {
+        Mailbox mailbox = mailboxes.get(name);
+        if (mailbox == null) return false;
+
+        synchronized (mailbox) {
+            if (mailbox.forgotten || mailbox.count() >= MAX_ITEMS_PER_RECIPIENT) return false;
+
+            if (mailbox.spilledCount == 0 && memoryBytes.get() + frame.length <= MEMORY_BUDGET) {
+                mailbox.memory.addLast(frame);
+                memoryBytes.addAndGet(frame.length);
+                return true;
+            }
+
+            if (mailbox.spilledBytes + 4 + frame.length > MAX_DISK_BYTES_PER_RECIPIENT
+                    || diskBytes.get() + 4 + frame.length > DISK_BUDGET) {
+                return false;
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mailbox.file, true)))) {
+                out.writeInt(frame.length);
+                out.write(frame);
+            } catch (IOException e) {
+                System.out.println("❌ Erreur écriture boîte de " + name + ": " + e.getMessage());
+                return false;
+            }
+            mailbox.spilledCount++;
+            mailbox.spilledBytes += 4 + frame.length;
+            diskBytes.addAndGet(4 + frame.length);
+            return true;
+        }
+    }
+
+    /** True si des trames attendent {@code name}. */
+    public boolean hasPending(String name) {
+        Mailbox mailbox = mailboxes.get(name);
+        if (mailbox == null) return false;
+        synchronized (mailbox) {
+            return mailbox.count() > 0;
+        }
+    }
+
+    /**
+     * Livre la file de {@code name} à {@code sink}. Si une livraison est déjà en cours,
+     * elle continue vers ce nouveau destinataire, après le même délai de démarrage.
+     */
+    public void deliver(String name, Sink sink) {
+        Mailbox mailbox = mailboxes.get(name);
+        if (mailbox == null) return;
+        synchronized (mailbox) {
+            mailbox.sink = sink;
+            if (mailbox.delivering || mailbox.count() == 0) return;
+            mailbox.delivering = true;
+            System.out.println("📬 Livraison de " + mailbox.count() + " éléments en attente pour " + name);
+        }
+        scheduler.schedule(() -> deliverBatch(mailbox, sink), START_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void deliverBatch(Mailbox mailbox, Sink sink) {
+        int items = 0;
+        int bytes = 0;
+        while (items < BATCH_ITEMS && bytes < BATCH_BYTES) {
+            byte[] frame;
+            synchronized (mailbox) {
+                if (mailbox.sink != sink) {
+                    // Reconnexion entre deux lots : reprendre vers le nouveau destinataire
+                    mailbox.checkpoint();
+                    Sink current = mailbox.sink;
+                    scheduler.schedule(() -> deliverBatch(mailbox, current), START_DELAY_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (!sink.stillOnline() || (frame = mailbox.poll()) == null) {
+                    mailbox.checkpoint();
+                    mailbox.delivering = false;
+                    return;
+                }
+            }
+            sink.deliver(frame);
+            items++;
+            bytes += frame.length;
+        }
+        synchronized (mailbox) {
+            mailbox.checkpoint();
+        }
+        scheduler.schedule(() -> deliverBatch(mailbox, sink), PACE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void reload() {
+        File[] files = directory.listFiles((dir, file) -> file.endsWith(".q"));
+        if (files == null) return;
+
+        for (File file : files) {
+            String name = decodeName(file.getName().substring(0, file.getName().length() - 2));
+            if (name == null) continue;
+
+            Mailbox mailbox = new Mailbox(name);
+            mailbox.readOffset = mailbox.savedOffset = readOffset(mailbox.offsetFile, file.length());
+            try (FileInputStream stream = new FileInputStream(file)) {
+                stream.getChannel().position(mailbox.readOffset);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+                while (true) {
+                    int length = in.readInt();
+                    if (in.skipBytes(length) < length) break;
+                    mailbox.spilledCount++;
+                }
+            } catch (EOFException e) {
+                // Fin du fichier
+            } catch (IOException e) {
+                System.out.println("⚠️ Boîte de " + name + " illisible: " + e.getMessage());
+                continue;
+            }
+            if (mailbox.spilledCount > 0) {
+                mailbox.spilledBytes = file.length();
+                diskBytes.addAndGet(mailbox.spilledBytes);
+                mailbox.lastSeen = System.currentTimeMillis();
+                mailboxes.put(name, mailbox);
+                System.out.println("📪 " + mailbox.spilledCount + " éléments en attente pour " + name);
+            } else {
+                mailbox.deleteFiles();
+            }
+        }
+    }
+
+    /** Oublie les boîtes vides des pseudos absents depuis FORGET_AFTER_MS. */
+    private void forgetIdle() {
+        long now = System.currentTimeMillis();
+        for (Mailbox mailbox : mailboxes.values()) {
+            synchronized (mailbox) {
+                if (mailbox.count() > 0 || mailbox.delivering || now - mailbox.lastSeen < FORGET_AFTER_MS) continue;
+                mailbox.forgotten = true;
+                mailboxes.remove(mailbox.name, mailbox);
+            }
+        }
+    }
+
+    /** Position sauvegardée, ou 0 si elle est absente ou incohérente avec le fichier. */
+    private static long readOffset(File offsetFile, long fileLength) {
+        if (!offsetFile.exists()) return 0;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(offsetFile))) {
+            long offset = in.readLong();
+            return offset >= 0 && offset <= fileLength ? offset : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static String encodeName(String name) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    private static String decodeName(String hex) {
+        if (hex.isEmpty() || hex.length() % 2 != 0) return null;
+        try {
+            byte[] bytes = new byte[hex.length() / 2];
+            for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+            return new String(bytes, StandardCharsets.UTF_8);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** File d'un destinataire : d'abord la partie en mémoire, puis la partie sur disque. */
+    private class Mailbox {
+        final String name;
+        final File file;
+        final File offsetFile;
+        final ArrayDeque<byte[]> memory = new ArrayDeque<>();
+        int spilledCount;
+        long spilledBytes;
+        DataInputStream spillReader;
+        // Octets du fichier déjà lus, et dernière position sauvegardée dans offsetFile
+        long readOffset;
+        long savedOffset;
+        boolean delivering;
+        Sink sink;
+        volatile long lastSeen;
+        // Retirée de la table : un offer qui l'avait déjà obtenue doit échouer
+        boolean forgotten;
+
+        Mailbox(String name) {
+            this.name = name;
+            this.file = new File(directory, encodeName(name) + ".q");
+            this.offsetFile = new File(directory, encodeName(name) + ".off");
+        }
+
+        int count() {
+            return memory.size() + spilledCount;
+        }
+
+        byte[] poll() {
+            byte[] frame = memory.pollFirst();
+            if (frame != null) {
+                memoryBytes.addAndGet(-frame.length);
+                return frame;
+            }
+            if (spilledCount == 0) return null;
+
+            try {
+                if (spillReader == null) {
+                    FileInputStream stream = new FileInputStream(file);
+                    stream.getChannel().position(readOffset);
+                    spillReader = new DataInputStream(new BufferedInputStream(stream));
+                }
+                frame = new byte[spillReader.readInt()];
+                spillReader.readFully(frame);
+                readOffset += 4 + frame.length;
+                spilledCount--;
+            } catch (IOException e) {
+                System.out.println("❌ Erreur lecture boîte " + file + ": " + e.getMessage());
+                spilledCount = 0;
+                frame = null;
+            }
+
+            if (spilledCount == 0) {
+                try {
+                    if (spillReader != null) spillReader.close();
+                } catch (IOException e) {
+                    // Ignorer
+                }
+                spillReader = null;
+                deleteFiles();
+            }
+            return frame;
+        }
+
+        /** Sauvegarde la position de lecture, une fois les trames lues remises au destinataire. */
+        void checkpoint() {
+            if (readOffset == savedOffset) return;
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(offsetFile))) {
+                out.writeLong(readOffset);
+                savedOffset = readOffset;
+            } catch (IOException e) {
+                System.out.println("⚠️ Position de " + file + " non sauvegardée: " + e.getMessage());
+            }
+        }
+
+        /** La position d'abord : sans elle, un fichier restant est relu en entier plutôt que tronqué. */
+        void deleteFiles() {
+            offsetFile.delete();
+            file.delete();
+            diskBytes.addAndGet(-spilledBytes);
+            spilledBytes = 0;
+            readOffset = savedOffset = 0;
+        }
+    }
+}
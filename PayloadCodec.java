@@ -0,0 +1,174 @@
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * Compression optionnelle des trames échangées entre client et serveur.
+ *
+ * Une trame compressée est enveloppée ainsi :
+ *   writeUTF("COMP") | byte mode | int tailleOriginale | octets deflate (raw)
+ * La trame d'origine (type compris) est retrouvée à l'identique après décompression.
+ *
+ * Politique par type :
+ *  - TEXT, LISTE, CONNECT, DISCONNECT : deflate avec dictionnaire prédéfini (trames courtes)
+ *  - IMG, AUDIO, FILE : deflate de toute la trame, sauf si le contenu est déjà compressé
+ *    (PNG, JPEG, GIF, ZIP, GZIP, ...) d'après ses octets magiques
+ *
+ * Les Deflater/Inflater sont réutilisés par thread pour ne rien allouer sur le chemin critique.
+ */
+public final class PayloadCodec {
+    public static final String TYPE = "COMP";
+    public static final String CAPABILITY = "DEFLATE";
+
+    static final byte MODE_DICT = 1;
+    static final byte MODE_RAW = 2;
+
+    private static final int MAX_FRAME = 65507;
+    private static final int MIN_SIZE = 24; // En dessous, l'enveloppe coûte plus qu'elle ne rapporte
+
+    private static final byte[] DICTIONARY = buildDictionary();
+
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATER =
+            ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[MAX_FRAME]);
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * Compresse la trame si la politique du type le permet et si le gain est réel.
+     * Retourne la trame d'origine sinon.
+     */
+    public static byte[] encode(byte[] frame, String type, byte[] payload) {
+        byte mode = modeFor(type, payload);
+        if (mode == 0 || frame.length < MIN_SIZE) return frame;
+
+        Deflater deflater = DEFLATER.get();
+        byte[] scratch = SCRATCH.get();
+        deflater.reset();
+        if (mode == MODE_DICT) deflater.setDictionary(DICTIONARY);
+        deflater.setInput(frame);
+        deflater.finish();
+        int compressedLength = deflater.deflate(scratch);
+        if (!deflater.finished()) return frame; // Plus gros que la trame d'origine
+
+        int headerLength = 2 + TYPE.length() + 1 + 4;
+        if (headerLength + compressedLength >= frame.length) return frame;
+
+        byte[] out = new byte[headerLength + compressedLength];
+        out[0] = 0;
+        out[1] = (byte) TYPE.length();
+        for (int i = 0; i < TYPE.length(); i++) out[2 + i] = (byte) TYPE.charAt(i);
+        int pos = 2 + TYPE.length();
+        out[pos++] = mode;
+        out[pos++] = (byte) (frame.length >>> 24);
+        out[pos++] = (byte) (frame.length >>> 16);
+        out[pos++] = (byte) (frame.length >>> 8);
+        out[pos++] = (byte) frame.length;
+        System.arraycopy(scratch, 0, out, pos, compressedLength);
+        return out;
+    }
+
+    /**
+     * Décompresse une trame dont le type "COMP" vient d'être lu dans {@code in}.
+     * Retourne la trame d'origine complète.
+     */
+    public static byte[] decode(DataInputStream in) throws IOException {
+        byte mode = in.readByte();
+        int originalLength = in.readInt();
+        if ((mode != MODE_DICT && mode != MODE_RAW) || originalLength <= 0 || originalLength > MAX_FRAME) {
+            throw new IOException("Trame compressée invalide");
+        }
+
+        byte[] compressed = SCRATCH.get();
+        int compressedLength = 0;
+        int n;
+        while (compressedLength < compressed.length
+                && (n = in.read(compressed, compressedLength, compressed.length - compressedLength)) > 0) {
+            compressedLength += n;
+        }
+
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        if (mode == MODE_DICT) inflater.setDictionary(DICTIONARY);
+        inflater.setInput(compressed, 0, compressedLength);
+
+        byte[] frame = new byte[originalLength];
+        try {
+            int length = inflater.inflate(frame);
+            if (length != originalLength || !inflater.finished()) {
+                throw new IOException("Trame compressée tronquée");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Trame compressée corrompue: " + e.getMessage());
+        }
+        return frame;
+    }
+
+    static byte modeFor(String type, byte[] payload) {
+        switch (type) {
+            case "TEXT":
+            case "LISTE":
+            case "CONNECT":
+            case "DISCONNECT":
+                return MODE_DICT;
+            case "IMG":
+            case "AUDIO":
+            case "FILE":
+                return payload == null || isAlreadyCompressed(payload) ? 0 : MODE_RAW;
+            default:
+                return 0;
+        }
+    }
+
+    /** Détecte les formats déjà compressés d'après leurs octets magiques. */
+    static boolean isAlreadyCompressed(byte[] data) {
+        return startsWith(data, 0x89, 'P', 'N', 'G')        // PNG
+                || startsWith(data, 0xFF, 0xD8, 0xFF)        // JPEG
+                || startsWith(data, 'G', 'I', 'F', '8')      // GIF
+                || startsWith(data, 'P', 'K', 0x03, 0x04)    // ZIP, DOCX, JAR...
+                || startsWith(data, 0x1F, 0x8B)              // GZIP
+                || startsWith(data, '7', 'z', 0xBC, 0xAF)    // 7z
+                || startsWith(data, 'R', 'a', 'r', '!')      // RAR
+                || startsWith(data, 'O', 'g', 'g', 'S')      // OGG
+                || startsWith(data, 'I', 'D', '3')           // MP3
+                || startsWith(data, 0xFF, 0xFB)              // MP3 sans tag
+                || (startsWith(data, 'R', 'I', 'F', 'F') && data.length >= 12
+                    && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P'); // WEBP
+    }
+
+    private static boolean startsWith(byte[] data, int... magic) {
+        if (data.length < magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if ((data[i] & 0xFF) != magic[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Dictionnaire construit avec writeUTF, comme les trames elles-mêmes :
+     * préfixes de longueur et UTF-8 modifié (emojis) y figurent à l'identique.
+     * Les chaînes les plus fréquentes sont placées en dernier.
+     */
+    private static byte[] buildDictionary() {
+        String[] fragments = {
+                "bonjour", "salut", "merci", "oui", "non", "d'accord", "ça va ?",
+                "DISCONNECT", "CONNECT", "IMG", "AUDIO", "FILE",
+                "🔴 ", " a quitté le chat !", "🟢 ", " a rejoint le chat !",
+                "LISTE", "Client", ",",
+                "PRIVATE", "] (privé de ", ") : ",
+                "TOUS", "TEXT", "ALL", "[12:00:00] ", " : "
+        };
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            for (String fragment : fragments) out.writeUTF(fragment);
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Mesure le taux de compression et le coût CPU de PayloadCodec sur des trames typiques.
+ *
+ * Utilisation : java PayloadCodecBenchmark [iterations]
+ */
+public class PayloadCodecBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Random random = new Random(42);
+
+        Map<String, byte[]> frames = new LinkedHashMap<>();
+        frames.put("TEXT court", textFrame("[14:02:11] alice : salut, ça va ?"));
+        frames.put("TEXT long", textFrame("[14:02:11] alice : " + "Bonjour à tous, la réunion est décalée à demain matin. ".repeat(6)));
+        frames.put("TEXT présence", textFrame("🟢 alice a rejoint le chat !"));
+        frames.put("LISTE 50", listFrame(50));
+
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 800; i++) csv.append(i).append(",alice,").append(random.nextInt(1000)).append(",ok\n");
+        byte[] text = csv.toString().getBytes("UTF-8");
+        frames.put("FILE texte", binaryFrame("FILE", "data.csv", text));
+
+        byte[] png = new byte[40000];
+        random.nextBytes(png);
+        png[0] = (byte) 0x89; png[1] = 'P'; png[2] = 'N'; png[3] = 'G';
+        frames.put("IMG png", binaryFrame("IMG", "photo.png", png));
+
+        byte[] noise = new byte[40000];
+        random.nextBytes(noise);
+        frames.put("FILE aléatoire", binaryFrame("FILE", "noise.bin", noise));
+
+        System.out.printf("%-16s %8s %8s %8s %12s %12s%n", "Trame", "Avant", "Après", "Ratio", "Encode ns", "Décode ns");
+        for (Map.Entry<String, byte[]> entry : frames.entrySet()) {
+            byte[] frame = entry.getValue();
+            DataInputStream peek = new DataInputStream(new ByteArrayInputStream(frame));
+            String type = peek.readUTF();
+            byte[] payload = payloadOf(type, frame);
+
+            // Chauffe
+            byte[] encoded = frame;
+            for (int i = 0; i < iterations / 10; i++) encoded = PayloadCodec.encode(frame, type, payload);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) encoded = PayloadCodec.encode(frame, type, payload);
+            long encodeNs = (System.nanoTime() - start) / iterations;
+
+            long decodeNs = 0;
+            if (encoded != frame) {
+                for (int i = 0; i < iterations / 10; i++) decode(encoded);
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) decode(encoded);
+                decodeNs = (System.nanoTime() - start) / iterations;
+                if (!Arrays.equals(decode(encoded), frame)) throw new IllegalStateException("Aller-retour incorrect: " + entry.getKey());
+            }
+
+            System.out.printf("%-16s %8d %8d %7.2fx %12d %12d%n", entry.getKey(), frame.length, encoded.length,
+                    (double) frame.length / encoded.length, encodeNs, decodeNs);
+        }
+    }
+
+    private static byte[] decode(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        in.readUTF();
+        return PayloadCodec.decode(in);
+    }
+
+    private static byte[] payloadOf(String type, byte[] frame) throws IOException {
+        if (PayloadCodec.modeFor(type, null) == PayloadCodec.MODE_DICT) return null;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        in.readUTF();
+        in.readUTF();
+        in.readUTF();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private static byte[] textFrame(String msg) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeUTF("TEXT");
+        out.writeUTF("ALL");
+        out.writeUTF(msg);
+        return baos.toByteArray();
+    }
+
+    private static byte[] listFrame(int users) throws IOException {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < users; i++) list.append("Client").append(100 + i).append(",");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeUTF("LISTE");
+        out.writeUTF(list.toString());
+        return baos.toByteArray();
+    }
+
+    private static byte[] binaryFrame(String type, String filename, byte[] data) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeUTF(type);
+        out.writeUTF("alice");
+        out.writeUTF(filename);
+        out.writeInt(data.length);
+        out.write(data);
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Réglages de transport communs au client et au serveur.
+ *
+ *  - SO_RCVBUF / SO_SNDBUF dimensionnés d'après la charge attendue :
+ *    paquets/s x taille moyenne x durée de rafale à absorber ;
+ *  - taille de datagramme sûre : bornée par le MTU de l'interface de sortie,
+ *    puis affinée par sondage (PROBE / PROBE_ACK), avec FALLBACK_PAYLOAD si rien ne répond ;
+ *  - lecture des pertes noyau (colonne "drops" de /proc/net/udp) pour voir les débordements.
+ *
+ * Valeurs ajustables : -Dchat.transport.pps, -Dchat.transport.avgBytes, -Dchat.transport.burstMs
+ */
+public class TransportConfig {
+    public static final int MAX_UDP_PAYLOAD = 65507;
+    // Tient dans le MTU minimal IPv6 (1280) une fois les en-têtes IP/UDP retirés
+    public static final int FALLBACK_PAYLOAD = 1200;
+    public static final int MIN_PAYLOAD = 512;
+
+    private static final int IPV4_UDP_HEADERS = 28;
+    private static final int IPV6_UDP_HEADERS = 48;
+    private static final int MIN_BUFFER = 256 * 1024;
+    private static final int MAX_BUFFER = 16 * 1024 * 1024;
+    private static final int[] PROBE_SIZES = {8972, 1472, 1452, 1400, 1232};
+
+    private final int bufferSize;
+
+    public TransportConfig(int expectedPacketsPerSecond, int averagePacketBytes, int burstMillis) {
+        long wanted = (long) expectedPacketsPerSecond * averagePacketBytes * burstMillis / 1000;
+        this.bufferSize = (int) Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, wanted));
+    }
+
+    public static TransportConfig fromSystemProperties(int defaultPacketsPerSecond) {
+        return new TransportConfig(
+                Integer.getInteger("chat.transport.pps", defaultPacketsPerSecond),
+                Integer.getInteger("chat.transport.avgBytes", 2048),
+                Integer.getInteger("chat.transport.burstMs", 500));
+    }
+
+    /** Applique les tailles de tampon et signale si le noyau les a plafonnées. */
+    public void apply(DatagramSocket socket) throws SocketException {
+        socket.setReceiveBufferSize(bufferSize);
+        socket.setSendBufferSize(bufferSize);
+
+        int receive = socket.getReceiveBufferSize();
+        int send = socket.getSendBufferSize();
+        System.out.println("📦 Tampons UDP - réception: " + receive / 1024 + " Ko, envoi: " + send / 1024 + " Ko");
+        if (receive < bufferSize) {
+            System.out.println("⚠️ Tampon de réception plafonné par le système (" + bufferSize / 1024
+                    + " Ko demandés) : augmenter net.core.rmem_max");
+        }
+    }
+
+    /** Plus grande charge utile sans fragmentation IP d'après le MTU de l'interface vers {@code peer}. */
+    public static int interfacePayloadLimit(InetAddress peer) {
+        int headers = peer instanceof Inet6Address ? IPV6_UDP_HEADERS : IPV4_UDP_HEADERS;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            // connect() ne transmet rien : il sert seulement à choisir l'interface de sortie
+            socket.connect(peer, 9);
+            NetworkInterface nic = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+            if (nic == null && peer.isLoopbackAddress()) nic = NetworkInterface.getByInetAddress(peer);
+            if (nic != null && nic.getMTU() > 0) {
+                return Math.min(MAX_UDP_PAYLOAD, nic.getMTU() - headers);
+            }
+        } catch (IOException e) {
+            // Interface introuvable : valeur de repli
+        }
+        return FALLBACK_PAYLOAD;
+    }
+
+    /** Tailles à sonder, de la plus grande à la plus petite, sans dépasser le MTU de l'interface. */
+    public static int[] probeSizes(InetAddress peer) {
+        int limit = interfacePayloadLimit(peer);
+        TreeSet<Integer> sizes = new TreeSet<>(Comparator.reverseOrder());
+        sizes.add(limit);
+        for (int size : PROBE_SIZES) {
+            if (size <= limit) sizes.add(size);
+        }
+        int[] result = new int[sizes.size()];
+        int i = 0;
+        for (int size : sizes) result[i++] = size;
+        return result;
+    }
+
+    /** Datagrammes jetés par le noyau pour ce port local, ou -1 si l'information est indisponible. */
+    public static long kernelDrops(int localPort) {
+        long total = -1;
+        for (String table : new String[]{"/proc/net/udp", "/proc/net/udp6"}) {
+            try {
+                List<String> lines = Files.readAllLines(Paths.get(table));
+                for (int i = 1; i < lines.size(); i++) {
+                    String[] cols = lines.get(i).trim().split("\\s+");
+                    if (cols.length < 13) continue;
+                    String local = cols[1];
+                    int port = Integer.parseInt(local.substring(local.lastIndexOf(':') + 1), 16);
+                    if (port == localPort) total = Math.max(total, 0) + Long.parseLong(cols[12]);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Pas de /proc (hors Linux) : ignorer
+            }
+        }
+        return total;
+    }
+
+    /** Affiche périodiquement les nouvelles pertes noyau du socket. */
+    public static void startDropMonitor(DatagramSocket socket, long intervalMillis) {
+        int port = socket.getLocalPort();
+        if (kernelDrops(port) < 0) return;
+
+        Thread monitor = new Thread(() -> {
+            long last = kernelDrops(port);
+            while (!socket.isClosed()) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long drops = kernelDrops(port);
+                if (drops > last) {
+                    System.out.println("📉 " + (drops - last) + " datagrammes perdus par le noyau sur le port "
+                            + port + " (total " + drops + ") : tampon de réception plein");
+                }
+                last = Math.max(last, drops);
+            }
+        }, "udp-drop-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+}